@@ -10,12 +10,25 @@ public final class DeclStatement extends Statement {
 
     private final CharSequence name;
     private final Expr initializer;
+    private final int frame;
+    private final int slot;
             
     /** @param initExpr can be null if this is a lambda declaration */
     public DeclStatement(int line, int column, CharSequence name, Expr initExpr) {
+        this(line, column, name, initExpr, 0, -1);
+    }
+
+    /** 
+     * @param initExpr can be null if this is a lambda declaration
+     * @param frame see getFrame
+     * @param slot see getSlot
+     */
+    public DeclStatement(int line, int column, CharSequence name, Expr initExpr, int frame, int slot) {
         super(line, column);
         this.name = name;
         this.initializer = initExpr;
+        this.frame = frame;
+        this.slot = slot;
     }
 
     @Override
@@ -36,6 +49,22 @@ public final class DeclStatement extends Statement {
         return initializer;
     }
 
+    /** 
+     * @return 0 for a global variable, nesting depth of the lambda for a lambda parameter;
+     * a lambda sees its own parameters only, so the frame is the innermost one
+     */
+    public int getFrame() {
+        return frame;
+    }
+
+    /** 
+     * @return index of the variable in its frame (global variables are numbered in the order of declaration,
+     * lambda parameters in the order of their declaration in the lambda); -1 if unknown
+     */
+    public int getSlot() {
+        return slot;
+    }
+
     @Override
     public String toString() {
         return super.toString() + name;
@@ -13,16 +13,35 @@ public final class IdExpr extends Expr {
 
     private final CharSequence name;
     private final Type type;
+    private final int frame;
+    private final int slot;
 
     public IdExpr(CharSequence name, int line, int column, Type type) {
+        this(name, line, column, type, 0, -1);
+    }
+
+    /** @param frame and slot identify the declaration, see DeclStatement */
+    public IdExpr(CharSequence name, int line, int column, Type type, int frame, int slot) {
         super(line, column);
         this.name = name;
         this.type = type;
+        this.frame = frame;
+        this.slot = slot;
     }
 
     public CharSequence getName() {
         return name;
     }
+
+    /** @return frame of the variable this refers to, see DeclStatement.getFrame */
+    public int getFrame() {
+        return frame;
+    }
+
+    /** @return slot of the variable this refers to, see DeclStatement.getSlot; -1 if unresolved */
+    public int getSlot() {
+        return slot;
+    }
     
     @Override
     public NodeKind getNodeKind() {
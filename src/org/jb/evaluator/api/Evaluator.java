@@ -21,6 +21,24 @@ public final class Evaluator {
         runnerImpl.execute(ast);
     }
 
+    /**
+     * Stops execution as soon as possible; can be called from any thread.
+     * Statements that are not completed by then produce no output.
+     * The evaluator can not be reused after that: further execute calls do nothing.
+     */
+    public void cancel() {
+        runnerImpl.cancel();
+    }
+
+    /**
+     * Sets time budget of each execute call: when it's over, execution stops with an error.
+     * Can be called from any thread, also during execution: the budget is counted from its start.
+     * @param millis budget in milliseconds; 0 means no budget (the default is jbs.time.budget)
+     */
+    public void setTimeBudget(long millis) {
+        runnerImpl.setTimeBudget(millis);
+    }
+
     public void dispose() {
         runnerImpl.dispose();
     }
@@ -0,0 +1,379 @@
+package org.jb.evaluator.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A minimal class file writer: just enough to emit a class with a few methods
+ * that consist of arithmetic, array access, static calls and simple loops.
+ * Emits version 49 class files, so that no stack map frames are needed.
+ * @author vkvashin
+ */
+final class ClassEmitter {
+
+    public static final int ACC_PUBLIC = 0x0001;
+    public static final int ACC_STATIC = 0x0008;
+    public static final int ACC_FINAL = 0x0010;
+    public static final int ACC_SUPER = 0x0020;
+
+    public static final int ICONST_0 = 0x03;
+    public static final int DCONST_0 = 0x0e;
+    public static final int DCONST_1 = 0x0f;
+    public static final int BIPUSH = 0x10;
+    public static final int SIPUSH = 0x11;
+    public static final int LDC = 0x12;
+    public static final int LDC_W = 0x13;
+    public static final int LDC2_W = 0x14;
+    public static final int ILOAD = 0x15;
+    public static final int DLOAD = 0x18;
+    public static final int ALOAD = 0x19;
+    public static final int IALOAD = 0x2e;
+    public static final int DALOAD = 0x31;
+    public static final int ISTORE = 0x36;
+    public static final int DSTORE = 0x39;
+    public static final int IASTORE = 0x4f;
+    public static final int DASTORE = 0x52;
+    public static final int DUP = 0x59;
+    public static final int DUP2 = 0x5c;
+    public static final int IADD = 0x60;
+    public static final int DADD = 0x63;
+    public static final int ISUB = 0x64;
+    public static final int DSUB = 0x67;
+    public static final int IMUL = 0x68;
+    public static final int DMUL = 0x6b;
+    public static final int IDIV = 0x6c;
+    public static final int DDIV = 0x6f;
+    public static final int INEG = 0x74;
+    public static final int DNEG = 0x77;
+    public static final int IINC = 0x84;
+    public static final int I2D = 0x87;
+    public static final int IF_ICMPGE = 0xa2;
+    public static final int GOTO = 0xa7;
+    public static final int IRETURN = 0xac;
+    public static final int DRETURN = 0xaf;
+    public static final int RETURN = 0xb1;
+    public static final int INVOKESPECIAL = 0xb7;
+    public static final int INVOKESTATIC = 0xb8;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_DOUBLE = 6;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    private final String className;
+    private final String superName;
+    private final ByteArrayOutputStream constants = new ByteArrayOutputStream();
+    private final Map<String, Integer> constantIndices = new HashMap<>();
+    private int constantCount = 1;
+    private final List<MethodEmitter> methods = new ArrayList<>();
+
+    /**
+     * @param className internal name of the class, e.g. "org/jb/Foo"
+     * @param superName internal name of the super class
+     */
+    public ClassEmitter(String className, String superName) {
+        this.className = className;
+        this.superName = superName;
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    public MethodEmitter method(int access, String name, String descriptor, int maxLocals) {
+        MethodEmitter m = new MethodEmitter(access, name, descriptor, maxLocals);
+        methods.add(m);
+        return m;
+    }
+
+    /** Adds a public no-arg constructor that calls the super one */
+    public void defaultConstructor() {
+        MethodEmitter m = method(ACC_PUBLIC, "<init>", "()V", 1);
+        m.load(ALOAD, 0);
+        m.invoke(INVOKESPECIAL, superName, "<init>", "()V", -1);
+        m.op(RETURN, 0);
+    }
+
+    public byte[] toByteArray() {
+        try {
+            final int thisIndex = classConstant(className);
+            final int superIndex = classConstant(superName);
+            final int codeIndex = utf8Constant("Code");
+            // methods refer to constants, so they are written first
+            ByteArrayOutputStream methodBytes = new ByteArrayOutputStream();
+            DataOutputStream mout = new DataOutputStream(methodBytes);
+            for (MethodEmitter m : methods) {
+                m.write(mout, codeIndex);
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0); // minor
+            out.writeShort(49); // major: Java 5, no stack map frames
+            out.writeShort(constantCount);
+            constants.writeTo(out);
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisIndex);
+            out.writeShort(superIndex);
+            out.writeShort(0); // interfaces
+            out.writeShort(0); // fields
+            out.writeShort(methods.size());
+            mout.flush();
+            methodBytes.writeTo(out);
+            out.writeShort(0); // attributes
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex); // never happens with byte array streams
+        }
+    }
+
+    private int utf8Constant(String value) {
+        Integer index = constantIndices.get("U" + value);
+        if (index == null) {
+            constants.write(CONSTANT_UTF8);
+            // names and descriptors are plain ASCII, so UTF-8 is the same as modified UTF-8
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeShort(constants, bytes.length);
+            constants.write(bytes, 0, bytes.length);
+            index = addConstant("U" + value, 1);
+        }
+        return index;
+    }
+
+    private int classConstant(String name) {
+        Integer index = constantIndices.get("C" + name);
+        if (index == null) {
+            final int nameIndex = utf8Constant(name);
+            constants.write(CONSTANT_CLASS);
+            writeShort(constants, nameIndex);
+            index = addConstant("C" + name, 1);
+        }
+        return index;
+    }
+
+    private int methodConstant(String owner, String name, String descriptor) {
+        final String key = "M" + owner + '.' + name + descriptor;
+        Integer index = constantIndices.get(key);
+        if (index == null) {
+            final int ownerIndex = classConstant(owner);
+            final int nameIndex = utf8Constant(name);
+            final int descriptorIndex = utf8Constant(descriptor);
+            Integer natIndex = constantIndices.get("N" + name + descriptor);
+            if (natIndex == null) {
+                constants.write(CONSTANT_NAME_AND_TYPE);
+                writeShort(constants, nameIndex);
+                writeShort(constants, descriptorIndex);
+                natIndex = addConstant("N" + name + descriptor, 1);
+            }
+            constants.write(CONSTANT_METHODREF);
+            writeShort(constants, ownerIndex);
+            writeShort(constants, natIndex);
+            index = addConstant(key, 1);
+        }
+        return index;
+    }
+
+    private int intConstant(int value) {
+        Integer index = constantIndices.get("I" + value);
+        if (index == null) {
+            constants.write(CONSTANT_INTEGER);
+            writeInt(constants, value);
+            index = addConstant("I" + value, 1);
+        }
+        return index;
+    }
+
+    private int doubleConstant(double value) {
+        final String key = "D" + Double.doubleToRawLongBits(value);
+        Integer index = constantIndices.get(key);
+        if (index == null) {
+            constants.write(CONSTANT_DOUBLE);
+            final long bits = Double.doubleToRawLongBits(value);
+            writeInt(constants, (int) (bits >>> 32));
+            writeInt(constants, (int) bits);
+            index = addConstant(key, 2);
+        }
+        return index;
+    }
+
+    private int addConstant(String key, int slots) {
+        final int index = constantCount;
+        constantIndices.put(key, index);
+        constantCount += slots;
+        return index;
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write((value >> 8) & 0xFF);
+        out.write(value & 0xFF);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        writeShort(out, value >>> 16);
+        writeShort(out, value);
+    }
+
+    /**
+     * Emits code of a single method.
+     * Tracks operand stack depth: each emitting method gets the stack delta of the instruction.
+     */
+    public final class MethodEmitter {
+
+        private final int access;
+        private final String name;
+        private final String descriptor;
+        private final int maxLocals;
+        private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+        /** pairs {jump position, target position} to be patched when writing */
+        private final List<int[]> jumpTargets = new ArrayList<>();
+        private int stack;
+        private int maxStack;
+
+        private MethodEmitter(int access, String name, String descriptor, int maxLocals) {
+            this.access = access;
+            this.name = name;
+            this.descriptor = descriptor;
+            this.maxLocals = maxLocals;
+        }
+
+        /** Emits an instruction without operands that changes stack depth by the given delta */
+        public void op(int opcode, int stackDelta) {
+            code.write(opcode);
+            adjustStack(stackDelta);
+        }
+
+        public void load(int opcode, int slot) {
+            localOp(opcode, slot);
+            adjustStack(opcode == DLOAD ? 2 : 1);
+        }
+
+        public void store(int opcode, int slot) {
+            localOp(opcode, slot);
+            adjustStack(opcode == DSTORE ? -2 : -1);
+        }
+
+        public void iinc(int slot, int increment) {
+            assert slot < 256 && increment >= Byte.MIN_VALUE && increment <= Byte.MAX_VALUE;
+            code.write(IINC);
+            code.write(slot);
+            code.write(increment);
+        }
+
+        public void pushInt(int value) {
+            if (value >= -1 && value <= 5) {
+                code.write(ICONST_0 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                code.write(BIPUSH);
+                code.write(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                code.write(SIPUSH);
+                writeShort(code, value);
+            } else {
+                final int index = constant(intConstant(value));
+                if (index < 256) {
+                    code.write(LDC);
+                    code.write(index);
+                } else {
+                    code.write(LDC_W);
+                    writeShort(code, index);
+                }
+            }
+            adjustStack(1);
+        }
+
+        public void pushDouble(double value) {
+            if (Double.doubleToRawLongBits(value) == 0L) { // not -0.0
+                code.write(DCONST_0);
+            } else if (value == 1.0) {
+                code.write(DCONST_1);
+            } else {
+                code.write(LDC2_W);
+                writeShort(code, constant(doubleConstant(value)));
+            }
+            adjustStack(2);
+        }
+
+        /** @param stackDelta stack change: results minus arguments (including the receiver, if any) */
+        public void invoke(int opcode, String owner, String methodName, String methodDescriptor, int stackDelta) {
+            code.write(opcode);
+            writeShort(code, constant(methodConstant(owner, methodName, methodDescriptor)));
+            adjustStack(stackDelta);
+        }
+
+        /** @return position of the current instruction; can be used as a backward jump target */
+        public int position() {
+            return code.size();
+        }
+
+        /**
+         * Emits a jump with the yet unknown target
+         * @return position of the jump instruction; see patchJump
+         */
+        public int jump(int opcode, int stackDelta) {
+            final int pos = code.size();
+            code.write(opcode);
+            writeShort(code, 0);
+            adjustStack(stackDelta);
+            return pos;
+        }
+
+        public void jumpBack(int opcode, int target, int stackDelta) {
+            final int pos = code.size();
+            code.write(opcode);
+            writeShort(code, target - pos);
+            adjustStack(stackDelta);
+        }
+
+        /** Sets the target of the jump emitted at jumpPos to the current position */
+        public void patchJump(int jumpPos) {
+            jumpTargets.add(new int[] { jumpPos, code.size() });
+        }
+
+        private void localOp(int opcode, int slot) {
+            assert slot < 256;
+            code.write(opcode);
+            code.write(slot);
+        }
+
+        private void adjustStack(int delta) {
+            stack += delta;
+            assert stack >= 0;
+            maxStack = Math.max(maxStack, stack);
+        }
+
+        private int constant(int index) {
+            assert index < 65536 : "too many constants";
+            return index;
+        }
+
+        private void write(DataOutputStream out, int codeIndex) throws IOException {
+            byte[] bytes = code.toByteArray();
+            for (int[] jump : jumpTargets) {
+                final int offset = jump[1] - jump[0];
+                bytes[jump[0] + 1] = (byte) (offset >> 8);
+                bytes[jump[0] + 2] = (byte) offset;
+            }
+            out.writeShort(access);
+            out.writeShort(utf8Constant(name));
+            out.writeShort(utf8Constant(descriptor));
+            out.writeShort(1); // attributes
+            out.writeShort(codeIndex);
+            out.writeInt(2 + 2 + 4 + bytes.length + 2 + 2);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            out.writeShort(0); // exception table
+            out.writeShort(0); // attributes
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package org.jb.evaluator.impl;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fork/join pool shared by all evaluators of the process.
+ * It is started lazily, by the first parallel operation, and is never shut down;
+ * its threads are daemons that the pool stops when they are idle,
+ * so running a script costs no thread creation, and evaluators that run at once do not oversubscribe the machine.
+ *
+ * An evaluator is a tenant of the pool while it executes a script (see join and leave).
+ * Tenants get fair shares of the pool: each parallel operation is split for the tenant's share
+ * of threads rather than for the whole pool (see share), so that concurrent scripts queue comparable
+ * numbers of tasks, and idle workers pick them up evenly.
+ * A tenant that is done (or cancelled) leaves immediately, and the next operations of others get larger shares.
+ * @author vkvashin
+ */
+final class ComputePool {
+
+    /** Processors the process can use: availableProcessors, further limited by the cgroup CPU quota if any */
+    public static final int CPU_LIMIT = cpuLimit();
+
+    /** Default number of threads: all the processors we can use but one, which is left for the caller and UI */
+    public static final int DEFAULT_SIZE = Math.max(1, CPU_LIMIT - 1);
+
+    private static final AtomicInteger tenants = new AtomicInteger();
+
+    private ComputePool() {
+    }
+
+    /** The pool itself is created on first use; its size is jbs.threads (DEFAULT_SIZE if not set) */
+    private static final class Holder {
+        private static final ForkJoinPool POOL = new ForkJoinPool(Integer.getInteger("jbs.threads", DEFAULT_SIZE));
+    }
+
+    public static ForkJoinPool get() {
+        return Holder.POOL;
+    }
+
+    public static void join() {
+        tenants.incrementAndGet();
+    }
+
+    public static void leave() {
+        tenants.decrementAndGet();
+    }
+
+    /**
+     * @param limit the most threads the tenant wants
+     * @return number of threads a tenant should split its operation for
+     */
+    public static int share(int limit) {
+        final int parallelism = get().getParallelism();
+        return Math.max(1, Math.min(limit, parallelism / Math.max(1, tenants.get())));
+    }
+
+    /** @return number of pool threads that are not busy now, counting the current one if it is a pool thread */
+    public static int idle() {
+        final ForkJoinPool pool = get();
+        return pool.getParallelism() - pool.getActiveThreadCount() + ((ForkJoinTask.getPool() == pool) ? 1 : 0);
+    }
+
+    /**
+     * Older JVMs do not take container limits into account in availableProcessors,
+     * so the CPU quota (cgroup v2 cpu.max or cgroup v1 cpu.cfs_quota_us) is checked explicitly.
+     */
+    private static int cpuLimit() {
+        final int processors = Runtime.getRuntime().availableProcessors();
+        try {
+            final Path cpuMax = Paths.get("/sys/fs/cgroup/cpu.max");
+            if (Files.isReadable(cpuMax)) {
+                // "max 100000" if not limited, otherwise "<quota> <period>"
+                final String[] parts = read(cpuMax).split("\\s+");
+                return parts[0].equals("max") ? processors : limit(processors, Long.parseLong(parts[0]), Long.parseLong(parts[1]));
+            }
+            final Path quota = Paths.get("/sys/fs/cgroup/cpu/cpu.cfs_quota_us");
+            final Path period = Paths.get("/sys/fs/cgroup/cpu/cpu.cfs_period_us");
+            if (Files.isReadable(quota) && Files.isReadable(period)) {
+                // quota is -1 if not limited
+                return limit(processors, Long.parseLong(read(quota)), Long.parseLong(read(period)));
+            }
+        } catch (IOException | RuntimeException ex) {
+            // unexpected format: rely on availableProcessors
+        }
+        return processors;
+    }
+
+    private static int limit(int processors, long quota, long period) {
+        if (quota <= 0 || period <= 0) {
+            return processors;
+        }
+        return (int) Math.max(1, Math.min(processors, (quota + period - 1) / period));
+    }
+
+    private static String read(Path file) throws IOException {
+        return new String(Files.readAllBytes(file), StandardCharsets.US_ASCII).trim();
+    }
+}
@@ -0,0 +1,185 @@
+package org.jb.evaluator.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Properties;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jb.evaluator.impl.EvaluatorImpl.AddII;
+import org.jb.evaluator.impl.EvaluatorImpl.ConstI;
+import org.jb.evaluator.impl.EvaluatorImpl.MulII;
+import org.jb.evaluator.impl.EvaluatorImpl.Op;
+import org.jb.evaluator.impl.EvaluatorImpl.OpI;
+import org.jb.evaluator.impl.EvaluatorImpl.PowII;
+import org.jb.evaluator.impl.EvaluatorImpl.ReduceOpF;
+import org.jb.evaluator.impl.EvaluatorImpl.ReduceOpI;
+import org.jb.evaluator.impl.EvaluatorImpl.SharedF;
+import org.jb.evaluator.impl.EvaluatorImpl.SharedI;
+import org.jb.evaluator.impl.EvaluatorImpl.SignPowII;
+
+/**
+ * Decides whether an operation is worth running in parallel and how small its tasks can be (unless jbs.par.count is set):
+ * an operation should take longer than PARALLEL_NANOS, and a task should take longer than TASK_NANOS,
+ * otherwise forking, stealing and joining tasks costs more than it saves.
+ * Cost of an element is estimated from the prepared op tree, in units (about a cheap int operation
+ * in a compiled kernel, see opCost); an op tree that is interpreted costs INTERPRETER_FACTOR times more.
+ * Both the time of a unit and the factor are measured once per process (see calibrate).
+ * If jbs.cost.file is set, they are kept in that file, so that they are measured once per machine.
+ * @author vkvashin
+ */
+final class CostModel {
+
+    /** Elements are processed by blocks of this size, see calibrate */
+    private static final int BLOCK_SIZE = EvaluatorImpl.BLOCK_SIZE;
+
+    public static final double PARALLEL_NANOS = 200_000;
+    public static final double TASK_NANOS = 20_000;
+    /** Operations are sent to worker JVMs (see RemoteWorkers) only if they outweigh a round trip and serialization by far */
+    public static final double REMOTE_NANOS = 20_000_000;
+    /** Cheap elements are not given larger tasks than this anyway */
+    public static final long MAX_GRAIN = 64 * BLOCK_SIZE;
+
+    /** Reading an element of a stored sequence or a range; see Value.getElementCost */
+    public static final double READ_COST = 1;
+    /** A transformation that is not prepared: the AST walker is slower than kernels by two orders of magnitude */
+    public static final double WALKER_COST = 200;
+    /** A nested reduce: the size of its sequence is not known in advance */
+    public static final double NESTED_COST = 1000;
+
+    private static final String NANOS_KEY = "nanos.per.unit";
+    private static final String INTERPRETER_KEY = "interpreter.factor";
+
+    private static final class Holder {
+        private static final Properties CALIBRATION = load();
+        private static final double NANOS_PER_UNIT = Double.parseDouble(CALIBRATION.getProperty(NANOS_KEY));
+        private static final double INTERPRETER_FACTOR = Double.parseDouble(CALIBRATION.getProperty(INTERPRETER_KEY));
+    }
+
+    public static double nanos(double cost) {
+        return cost * Holder.NANOS_PER_UNIT;
+    }
+
+    /**
+     * @param compiled whether the op tree is compiled into a kernel (see KernelCompiler) rather than interpreted
+     * @return estimated cost of evaluating the op tree once; a null op is evaluated by the AST walker
+     */
+    public static double opCost(Op op, boolean compiled) {
+        if (op == null) {
+            return WALKER_COST;
+        }
+        final double units = opCost(op, Collections.newSetFromMap(new IdentityHashMap<>()));
+        return compiled ? units : units * Holder.INTERPRETER_FACTOR;
+    }
+
+    /** @param shared common subexpressions that are already counted */
+    private static double opCost(Op op, Set<Op> shared) {
+        if (op.isInvariant()) {
+            return 0; // constants and hoisted subexpressions are calculated once
+        } else if (op instanceof ReduceOpI || op instanceof ReduceOpF) {
+            return NESTED_COST;
+        } else if (op instanceof SharedI) {
+            return shared.add(op) ? opCost(((SharedI) op).op, shared) : 0;
+        } else if (op instanceof SharedF) {
+            return shared.add(op) ? opCost(((SharedF) op).op, shared) : 0;
+        } else if (op.getOpKind() == null) {
+            return 0; // lambda parameters and sequences: the consumer pays for their elements
+        }
+        final double cost;
+        switch (op.getOpKind()) {
+            case DIV:
+                cost = 4;
+                break;
+            case POW:
+                cost = (op instanceof SignPowII) ? 1 : (op instanceof PowII) ? 8 : 20;
+                break;
+            default:
+                cost = 1;
+        }
+        return cost + opCost(op.getLeft(), shared) + opCost(op.getRight(), shared);
+    }
+
+    private static Properties load() {
+        final String file = System.getProperty("jbs.cost.file");
+        final Properties properties = new Properties();
+        if (file != null) {
+            try (InputStream in = Files.newInputStream(Paths.get(file))) {
+                properties.load(in);
+                Double.parseDouble(properties.getProperty(NANOS_KEY));
+                Double.parseDouble(properties.getProperty(INTERPRETER_KEY));
+                return properties;
+            } catch (IOException | RuntimeException ex) {
+                // not measured yet
+            }
+        }
+        calibrate(properties);
+        if (file != null) {
+            try (OutputStream out = Files.newOutputStream(Paths.get(file))) {
+                properties.store(out, "Cost model calibration");
+            } catch (IOException ex) {
+                Logger.getLogger(EvaluatorImpl.class.getName()).log(Level.WARNING, "Can not store " + file, ex);
+            }
+        }
+        return properties;
+    }
+
+    /** Lambda parameter for calibrate */
+    private static final class Probe extends OpI {
+        private int value;
+        @Override
+        public int eval() {
+            return value;
+        }
+    }
+
+    /** Results of calibrate loops; they are stored so that the loops are not optimized out */
+    private static volatile int checksum;
+
+    /**
+     * Measures x -> x * 3 + 1 (a read and two operations) over blocks, the same way a compiled kernel
+     * and mapBlock evaluate it; takes the best of several rounds, so that the first (not yet compiled) ones do not count.
+     */
+    private static void calibrate(Properties properties) {
+        final Probe probe = new Probe();
+        final OpI op = new AddII(new MulII(probe, new ConstI(3)), new ConstI(1));
+        final double units = READ_COST + opCost(op, Collections.newSetFromMap(new IdentityHashMap<>()));
+        final int[] in = new int[BLOCK_SIZE];
+        final int[] out = new int[BLOCK_SIZE];
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            in[i] = i;
+        }
+        final int blocksPerRound = 16;
+        final long deadline = System.nanoTime() + 50_000_000;
+        long bestCompiled = Long.MAX_VALUE;
+        long bestInterpreted = Long.MAX_VALUE;
+        for (int round = 0; round < 50 && System.nanoTime() < deadline; round++) {
+            long start = System.nanoTime();
+            for (int block = 0; block < blocksPerRound; block++) {
+                for (int i = 0; i < BLOCK_SIZE; i++) {
+                    out[i] = in[i] * 3 + 1;
+                }
+                checksum += out[block];
+            }
+            bestCompiled = Math.min(bestCompiled, System.nanoTime() - start);
+            start = System.nanoTime();
+            for (int block = 0; block < blocksPerRound; block++) {
+                for (int i = 0; i < BLOCK_SIZE; i++) {
+                    probe.value = in[i];
+                    out[i] = op.eval();
+                }
+                checksum += out[block];
+            }
+            bestInterpreted = Math.min(bestInterpreted, System.nanoTime() - start);
+        }
+        // sanity bounds: timers of some systems are coarse
+        final double nanosPerUnit = Math.max(0.01, Math.min(10, bestCompiled / (units * blocksPerRound * BLOCK_SIZE)));
+        final double interpreterFactor = Math.max(1, Math.min(100, (double) bestInterpreted / Math.max(1, bestCompiled)));
+        properties.setProperty(NANOS_KEY, Double.toString(nanosPerUnit));
+        properties.setProperty(INTERPRETER_KEY, Double.toString(interpreterFactor));
+    }
+}
@@ -1,19 +1,35 @@
 package org.jb.evaluator.impl;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Deque;
-import java.util.LinkedList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.function.Predicate;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.jb.ast.api.ASTNode;
@@ -23,6 +39,7 @@ import org.jb.ast.api.FloatLiteral;
 import org.jb.ast.api.*;
 import org.jb.ast.diagnostics.Diagnostic;
 import org.jb.ast.diagnostics.DiagnosticListener;
+import org.jb.evaluator.impl.RemoteProtocol.RemoteSeq;
 
 /**
  *
@@ -33,14 +50,42 @@ public class EvaluatorImpl {
     private final Appendable out;
     private final DiagnosticListener[] diagnosticListeners;
     
-    // Thread safety: we assume that all fields in variables are accessed from the single executor's thread
-    // This is asserted in several places.
-    // When we introduce multy-threaded calculations, we'll probably need synchronization.
-    // But right now it will only slow things down.
-    private Thread execurorThread;
+    // Thread safety: global variables are evaluated once, by whoever needs them first (see Variable.getValue);
+    // op trees and lambda variables are confined to the thread that evaluates them.
     
-    private final Symtab globalSymtab;
-    private final ThreadLocal<Deque<Symtab>> lambdaSymtabs = new ThreadLocal<>();
+    /** 
+     * Global variables indexed by their slots (see DeclStatement.getSlot).
+     * Lambda parameters are passed explicitly, as frames (see resolve)
+     */
+    private Variable[] globals = new Variable[16];
+    /** Number of references to each global variable indexed by its slot; see countUses */
+    private int[] useCounts = new int[0];
+    /** Global variable declarations indexed by their slots; see collectDependencies */
+    private DeclStatement[] declarations = new DeclStatement[0];
+    /** 
+     * For each top level statement, slots of global variables that are not used after it (see computeLiveness);
+     * their values are released once the statement is executed, so that only the working set stays in memory
+     */
+    private int[][] deadAfter = new int[0][];
+    /** 
+     * What to do with a sequence whose array would not fit into memory (see planStorage):
+     * "stream" (default) - leave it lazy, "fail" - report an error
+     */
+    private final String memoryPolicy = System.getProperty("jbs.memory.policy", "stream");
+    /** Keep segments of large sequences in direct buffers rather than in the heap; see SegmentedValue */
+    private final boolean offHeap = Boolean.getBoolean("jbs.storage.offheap");
+    /** Store sequences that fit into the heap in compact encodings; see PackedValue */
+    private final boolean packed = Boolean.parseBoolean(System.getProperty("jbs.storage.packed", "true"));
+    /** Sequences larger than this (in bytes) are stored in memory mapped temporary files; see SpillFile */
+    private final long spillBytes = Long.getLong("jbs.spill.bytes", Long.MAX_VALUE);
+    /** Directory for spill files */
+    private final String spillDir = System.getProperty("jbs.spill.dir", System.getProperty("java.io.tmpdir"));
+    /** Spill files created so far; they are deleted by dispose */
+    private final List<Path> spillFiles = Collections.synchronizedList(new ArrayList<>());
+    /** Materialized values of global variables; see ValueCache */
+    private final ValueCache valueCache = new ValueCache(Long.getLong("jbs.cache.bytes", Runtime.getRuntime().maxMemory() / 2));
+    /** Frame of the top level: there are no lambda parameters */
+    private static final LambdaVariable[] NO_FRAME = new LambdaVariable[0];
     
     private static final boolean TRACE = Boolean.getBoolean("jbs.trace");
     private static final boolean SUPPRESS_PREPARED_EXPRESSIONS = Boolean.getBoolean("jbs.suppress.prepare.expressions");
@@ -49,26 +94,387 @@ public class EvaluatorImpl {
     /** There are some errors that should be already reported by parser; the question is whether to report them  */
     private static final boolean REPORT_PARSER_ERRORS = false;
 
-    private final int minParallelizationCount = Integer.getInteger("jbs.par.count", 100000);
-    private final ThreadPoolExecutor executor;
+    /** If set (jbs.par.count), operations on at least this number of elements are parallel; otherwise see CostModel */
+    private final long minParallelizationCount = Long.getLong("jbs.par.count", -1);
+
+    /** Evaluate independent top level statements concurrently; see executeConcurrently */
+    private static final boolean PARALLEL_STATEMENTS = Boolean.parseBoolean(System.getProperty("jbs.par.statements", "true"));
+
+    /** Sequences are processed block by block; block should be small enough to stay in L1 cache */
+    static final int BLOCK_SIZE = 1024;
+
+    /** Parallel tasks are never split below this number of elements, unless CostModel says otherwise */
+    private static final int MIN_GRAIN = 4 * BLOCK_SIZE;
+    /** 
+     * Each parallel operation is split into about degreeOfParallelism * SPLITS_PER_THREAD tasks,
+     * so that threads that got cheap elements can steal work from those that got expensive ones
+     */
+    private static final int SPLITS_PER_THREAD = 8;
+    /** If there are more than this number of queued tasks, the pool is busy enough, and tasks are not split further */
+    private static final int SURPLUS_THRESHOLD = 3;
+
+    /**
+     * Float reductions always use the same combination tree (see TreeTask),
+     * so that the result does not depend on the number of threads
+     */
+    private final boolean deterministicReduce = Boolean.parseBoolean(System.getProperty("jbs.reduce.deterministic", "true"));
+    /** Use compensated (Neumaier) summation for float sums */
+    private final boolean compensatedReduce = Boolean.getBoolean("jbs.reduce.compensated");
+    /** Number of elements in a leaf of the fixed reduction tree; should not depend on anything but the sequence */
+    private static final int REDUCE_LEAF = 4 * BLOCK_SIZE;
+
+    /** Compile prepared map and reduce transformations into byte code; see KernelCompiler */
+    private static final boolean COMPILE_LAMBDAS = Boolean.parseBoolean(System.getProperty("jbs.compile.lambdas", "true"));
+    private final KernelCompiler kernelCompiler = (COMPILE_LAMBDAS && !SUPPRESS_PREPARED_EXPRESSIONS) ? new KernelCompiler() : null;
+
+    /** The most threads this evaluator uses; the pool is shared with other evaluators, see ComputePool */
     private final int threadCount;
 
+    /** Number of worker JVMs that run slices of the most expensive parallel operations; see RemoteWorkers */
+    private final int workerCount = Integer.getInteger("jbs.workers", 0);
+
+    /** Set by cancel; once set, the evaluator stops as soon as possible and is never run again, see checkCancelled */
+    private volatile boolean cancelled;
+    /** Time budget of a run in milliseconds (jbs.time.budget); 0 means there is no budget */
+    private volatile long timeBudget = Long.getLong("jbs.time.budget", 0);
+    /** System.nanoTime when the current run has started; the budget is counted from it, see isCancelled */
+    private volatile long runStart;
+
+    /**
+     * Switches that are read once, when the class is loaded; workers are started with these values rather than
+     * with the current system properties, so that they calculate slices the same way as this JVM (see RemoteWorkers).
+     * Switches that are read per evaluator are sent with each request instead (see RemoteProtocol.reduce).
+     */
+    static Map<String, String> getWorkerProperties() {
+        final Map<String, String> result = new HashMap<>();
+        result.put("jbs.suppress.prepare.expressions", Boolean.toString(SUPPRESS_PREPARED_EXPRESSIONS));
+        result.put("jbs.compile.lambdas", Boolean.toString(COMPILE_LAMBDAS));
+        return result;
+    }
+
     public EvaluatorImpl(Appendable out, boolean allowParallel, DiagnosticListener... diagnosticListeners) {
         this.out = out;
         this.diagnosticListeners = diagnosticListeners;
-        globalSymtab = new Symtab();
-        threadCount = allowParallel ? Integer.getInteger("jbs.threads", Runtime.getRuntime().availableProcessors() - 1) : 1;
-        executor = new ThreadPoolExecutor(threadCount, threadCount, 2, TimeUnit.SECONDS, new ArrayBlockingQueue(threadCount));
+        threadCount = allowParallel ? Integer.getInteger("jbs.threads", ComputePool.DEFAULT_SIZE) : 1;
     }
 
     public void dispose() {
-        executor.shutdown();
+        synchronized (spillFiles) {
+            for (Path file : spillFiles) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException ex) {
+                    // still mapped (on some platforms that prevents deletion)
+                    file.toFile().deleteOnExit();
+                }
+            }
+            spillFiles.clear();
+        }
+    }
+
+    private ForkJoinPool getPool() {
+        return ComputePool.get();
+    }
+
+    /**
+     * Degree of parallelism of an operation over size elements: this evaluator's share of the pool (see ComputePool),
+     * but not more than the number of pool threads that are idle now and not more than the number of grains.
+     * @return number of threads the operation is split for; 1 means it should be run in the current thread
+     */
+    private int degreeOfParallelism(long size, long minGrain) {
+        final int share = ComputePool.share(threadCount);
+        final int idle = ComputePool.idle();
+        final long grains = (size + minGrain - 1) / minGrain;
+        final int dop = (int) Math.max(1, Math.min(Math.min(share, idle), grains));
+        if (TRACE) {
+            System.err.printf("parallel operation on %d elements: share %d, idle %d, grains %d, cpu limit %d -> %d thread(s)%n",
+                    size, share, idle, grains, ComputePool.CPU_LIMIT, dop);
+        }
+        return dop;
+    }
+
+    /** Whether parallel operations are chosen by CostModel rather than by jbs.par.count */
+    private boolean useCostModel() {
+        return threadCount > 1 && minParallelizationCount < 0;
+    }
+
+    /**
+     * @param cost estimated cost of an element (see CostModel); it is not used unless useCostModel
+     * @return whether an operation is worth running in parallel
+     */
+    private boolean isParallel(long size, double cost) {
+        if (threadCount == 1) {
+            return false;
+        } else if (minParallelizationCount >= 0) {
+            return size >= minParallelizationCount;
+        }
+        final double nanos = size * CostModel.nanos(cost);
+        if (TRACE) {
+            System.err.printf("operation on %d elements of cost %.1f: estimated %.0f us%n", size, cost, nanos / 1000);
+        }
+        return nanos >= CostModel.PARALLEL_NANOS;
+    }
+
+    /** @return the smallest number of elements a parallel task should get */
+    private long minGrain(double cost) {
+        if (!useCostModel()) {
+            return MIN_GRAIN;
+        }
+        return (long) Math.max(1, Math.min(CostModel.MAX_GRAIN, CostModel.TASK_NANOS / CostModel.nanos(cost)));
     }
 
     public void execute(ASTNode ast) {
-        execurorThread = Thread.currentThread();
+        if (cancelled) {
+            return;
+        }
+        runStart = System.nanoTime();
+        if (threadCount > 1) {
+            ComputePool.join();
+        }
+        try {
+            executeScript(ast);
+        } catch (CancelledException ex) {
+            // statements that are still running in the pool stop at their next check
+            if (!cancelled) {
+                error("evaluation is stopped: time budget of " + timeBudget + " ms is exceeded");
+            }
+        } finally {
+            if (threadCount > 1) {
+                ComputePool.leave();
+            }
+        }
+    }
+
+    /**
+     * Stops the current run as soon as possible: loops over elements, including those
+     * of parallel slices that are still running, check the flag once per block (see checkCancelled).
+     * Slices that are queued for worker JVMs are dropped; those in progress are not waited for (see awaitRemote).
+     * Can be called from any thread; nothing is reported.
+     * The flag is never cleared: statements of the cancelled run may still be in the pool until their next check,
+     * so further runs are not started at all (see execute).
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * @param millis time budget of each run; the run is stopped with an error when it's over. 0 means no budget.
+     * Can be called during a run: the new budget is counted from the start of the run
+     */
+    public void setTimeBudget(long millis) {
+        timeBudget = millis;
+    }
+
+    /**
+     * Cancellation point: loops over elements call it once per block (AST walker loops, once per element).
+     * A single volatile read unless there is a time budget.
+     * @throws CancelledException if the run is cancelled or is over its time budget
+     */
+    private void checkCancelled() {
+        if (isCancelled()) {
+            throw new CancelledException();
+        }
+    }
+
+    private boolean isCancelled() {
+        final long budget = timeBudget;
+        return cancelled || (budget > 0 && System.nanoTime() - runStart > TimeUnit.MILLISECONDS.toNanos(budget));
+    }
+
+    private void executeScript(ASTNode ast) {
+        int slotCount = 0;
+        int statementCount = 0;
+        for (ASTNode node = ast; node != null; node = node.getNextSibling()) {
+            if (node instanceof DeclStatement) {
+                slotCount = Math.max(slotCount, ((DeclStatement) node).getSlot() + 1);
+            }
+            statementCount++;
+        }
+        if (slotCount > globals.length) {
+            // so that the array is not reallocated while concurrent statements read it
+            globals = Arrays.copyOf(globals, slotCount);
+        }
+        declarations = new DeclStatement[slotCount];
+        for (ASTNode node = ast; node != null; node = node.getNextSibling()) {
+            if (node instanceof DeclStatement && ((DeclStatement) node).getSlot() >= 0) {
+                declarations[((DeclStatement) node).getSlot()] = (DeclStatement) node;
+            }
+        }
+        useCounts = new int[slotCount];
+        for (ASTNode node = ast; node != null; node = node.getNextSibling()) {
+            countUses(node);
+        }
+        deadAfter = computeLiveness(ast, statementCount);
+        if (PARALLEL_STATEMENTS && threadCount > 1) {
+            executeConcurrently(ast);
+            return;
+        }
+        int index = 0;
         for( ASTNode node = ast; node != null && ! Thread.currentThread().isInterrupted(); node = node.getNextSibling()) {
             executeImpl(node);
+            release(index++);
+        }
+    }
+
+    /**
+     * Finds the last statement each global variable is used by, directly or via other variables.
+     * A variable that another one depends on is needed only until that one is calculated
+     * (i.e. until the first statement that uses it); if its value is still needed after that
+     * (e.g. by a lazy map), the dependent value holds it.
+     * @return slots of variables that are not needed after each statement
+     */
+    private int[][] computeLiveness(ASTNode ast, int statementCount) {
+        final int[] lastUse = new int[declarations.length];
+        Arrays.fill(lastUse, -1);
+        final Set<Integer> calculated = new HashSet<>();
+        int index = 0;
+        for (ASTNode node = ast; node != null; node = node.getNextSibling(), index++) {
+            if (node instanceof OutStatement) {
+                final Set<Integer> dependencies = new LinkedHashSet<>();
+                collectDependencies(((OutStatement) node).getExpr(), calculated, dependencies);
+                for (int slot : dependencies) {
+                    lastUse[slot] = index;
+                }
+                calculated.addAll(dependencies);
+            }
+        }
+        final int[] deadCount = new int[statementCount];
+        for (int slot = 0; slot < lastUse.length; slot++) {
+            if (lastUse[slot] >= 0) {
+                deadCount[lastUse[slot]]++;
+            }
+        }
+        final int[][] result = new int[statementCount][];
+        for (int i = 0; i < statementCount; i++) {
+            result[i] = new int[deadCount[i]];
+            deadCount[i] = 0;
+        }
+        for (int slot = 0; slot < lastUse.length; slot++) {
+            if (lastUse[slot] >= 0) {
+                result[lastUse[slot]][deadCount[lastUse[slot]]++] = slot;
+            }
+        }
+        return result;
+    }
+
+    /** Releases values of variables that are not used after the given statement; see computeLiveness */
+    private void release(int statement) {
+        if (statement < deadAfter.length) {
+            for (int slot : deadAfter[statement]) {
+                if (globals[slot] != null) {
+                    globals[slot].release();
+                }
+            }
+        }
+    }
+
+    /**
+     * Evaluates out statements as pool tasks, but prints their results in source order.
+     * A statement depends on the global variables it refers to, directly or via other variables' initializers;
+     * before the statement, tasks are started for its dependencies (leaves first, see collectDependencies),
+     * so that independent variables are calculated concurrently, too.
+     * Each variable is still calculated once: whoever needs one that is in progress waits for it (see Variable.getValue).
+     * Declarations are executed in place: they just bind variables to slots.
+     */
+    private void executeConcurrently(ASTNode ast) {
+        final ForkJoinPool p = getPool();
+        final Deque<CompletableFuture<Runnable>> pending = new ArrayDeque<>();
+        final Set<Integer> calculated = new HashSet<>();
+        try {
+            int index = 0;
+            for (ASTNode node = ast; node != null && !Thread.currentThread().isInterrupted(); node = node.getNextSibling(), index++) {
+                final int statement = index;
+                if (node instanceof OutStatement) {
+                    final OutStatement stmt = (OutStatement) node;
+                    final Set<Integer> dependencies = new LinkedHashSet<>();
+                    collectDependencies(stmt.getExpr(), calculated, dependencies);
+                    calculated.addAll(dependencies);
+                    for (int slot : dependencies) {
+                        final Variable var = globals[slot];
+                        if (var != null && !var.isStarted()) {
+                            p.execute(var::getValue);
+                        }
+                    }
+                    // variables are released after printing, i.e. when all the preceding statements are done
+                    pending.add(CompletableFuture.supplyAsync(() -> evaluateOut(stmt, dependencies), p).thenApply(action -> () -> {
+                        action.run();
+                        release(statement);
+                    }));
+                } else if (node instanceof PrintStatement) {
+                    final PrintStatement stmt = (PrintStatement) node;
+                    pending.add(CompletableFuture.completedFuture(() -> executePrint(stmt)));
+                } else {
+                    executeImpl(node);
+                }
+                flush(pending, false);
+            }
+            flush(pending, true);
+        } catch (InterruptedException ex) {
+            for (CompletableFuture<Runnable> f : pending) {
+                f.cancel(false);
+            }
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Prints results of completed statements in order; if wait is set, waits for all of them */
+    private void flush(Deque<CompletableFuture<Runnable>> pending, boolean wait) throws InterruptedException {
+        while (!pending.isEmpty() && (wait || pending.peek().isDone())) {
+            try {
+                pending.peek().get().run();
+            } catch (ExecutionException ex) {
+                final Throwable cause = ex.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IllegalStateException(cause);
+            }
+            pending.poll();
+        }
+    }
+
+    /** 
+     * Collects slots of global variables the expression depends on, directly or via other variables; 
+     * each variable goes after its own dependencies. Lambda bodies are skipped: they can not refer to globals
+     * @param calculated variables that are calculated by preceding statements; their dependencies are not collected
+     */
+    private void collectDependencies(ASTNode node, Set<Integer> calculated, Set<Integer> result) {
+        if (node == null) {
+            return;
+        }
+        switch (node.getNodeKind()) {
+            case ID:
+                final IdExpr id = (IdExpr) node;
+                final int slot = id.getSlot();
+                if (id.getFrame() == 0 && slot >= 0 && slot < declarations.length && declarations[slot] != null && !result.contains(slot)) {
+                    if (!calculated.contains(slot)) {
+                        collectDependencies(declarations[slot].getInitializer(), calculated, result);
+                    }
+                    result.add(slot);
+                }
+                break;
+            case PAREN:
+                collectDependencies(((ParenExpr) node).getFirstChild(), calculated, result);
+                break;
+            case OP:
+                collectDependencies(((BinaryOpExpr) node).getLeft(), calculated, result);
+                collectDependencies(((BinaryOpExpr) node).getRight(), calculated, result);
+                break;
+            case SEQ:
+                collectDependencies(((SeqExpr) node).getFirst(), calculated, result);
+                collectDependencies(((SeqExpr) node).getLast(), calculated, result);
+                break;
+            case MAP:
+                collectDependencies(((MapExpr) node).getSequence(), calculated, result);
+                break;
+            case REDUCE:
+                collectDependencies(((ReduceExpr) node).getSequence(), calculated, result);
+                collectDependencies(((ReduceExpr) node).getDefValue(), calculated, result);
+                break;
+            default:
+                break;
         }
     }
 
@@ -101,11 +507,87 @@ public class EvaluatorImpl {
     }
 
     private void executeDecl(DeclStatement stmt) {
-        if (REPORT_PARSER_ERRORS && getSymtab().contains(stmt)) {
+        final int slot = stmt.getSlot();
+        if (slot < 0) {
+            error(stmt, "unresolved variable declaration " + stmt.getDelarationName());
+            return;
+        }
+        assert stmt.getFrame() == 0;
+        if (REPORT_PARSER_ERRORS && slot < globals.length && globals[slot] != null) {
             error(stmt, "duplicate variable declaration " + stmt.getDelarationName());
         }
-        Variable var = new Variable(stmt);
-        getSymtab().put(var);
+        Variable var = new Variable(stmt, (slot < useCounts.length) ? useCounts[slot] : 0);
+        if (slot >= globals.length) {
+            globals = Arrays.copyOf(globals, Math.max(slot + 1, globals.length * 2));
+        }
+        globals[slot] = var;
+    }
+
+    /**
+     * Finds the variable the id refers to; no lookup by name is needed, since parser resolves ids to slots.
+     * @param frame parameters of the innermost lambda indexed by their slots; a lambda sees nothing but them
+     * @return the variable or null if the id is unresolved (this should have been already reported by parser)
+     */
+    private Variable resolve(IdExpr id, LambdaVariable[] frame) {
+        final int slot = id.getSlot();
+        if (slot < 0) {
+            return null;
+        } else if (id.getFrame() == 0) {
+            return (slot < globals.length) ? globals[slot] : null;
+        } else {
+            return (slot < frame.length) ? frame[slot] : null;
+        }
+    }
+
+    /**
+     * Counts references to global variables (lambda bodies can not refer to them).
+     * A lazy sequence stored in a variable that is used more than once
+     * is materialized, otherwise it would be calculated once per use.
+     */
+    private void countUses(ASTNode node) {
+        if (node == null) {
+            return;
+        }
+        switch (node.getNodeKind()) {
+            case ID:
+                final IdExpr id = (IdExpr) node;
+                if (id.getFrame() == 0 && id.getSlot() >= 0 && id.getSlot() < useCounts.length) {
+                    useCounts[id.getSlot()]++;
+                }
+                break;
+            case DECL:
+                countUses(((DeclStatement) node).getInitializer());
+                break;
+            case OUT:
+                countUses(((OutStatement) node).getExpr());
+                break;
+            case PAREN:
+                countUses(((ParenExpr) node).getFirstChild());
+                break;
+            case OP:
+                countUses(((BinaryOpExpr) node).getLeft());
+                countUses(((BinaryOpExpr) node).getRight());
+                break;
+            case SEQ:
+                countUses(((SeqExpr) node).getFirst());
+                countUses(((SeqExpr) node).getLast());
+                break;
+            case MAP:
+                countUses(((MapExpr) node).getSequence());
+                countUses(((MapExpr) node).getTransformation());
+                break;
+            case REDUCE:
+                countUses(((ReduceExpr) node).getSequence());
+                countUses(((ReduceExpr) node).getDefValue());
+                countUses(((ReduceExpr) node).getTransformation());
+                break;
+            case PRINT:
+            case INT:
+            case FLOAT:
+            case STRING:
+            default:
+                break;
+        }
     }
 
     private void executePrint(PrintStatement stmt) {
@@ -113,8 +595,56 @@ public class EvaluatorImpl {
     }
     
     private void executeOut(OutStatement stmt) {
-        Expr expr = stmt.getExpr();
-        Value value = evaluate(expr);
+        final Set<Integer> dependencies = new LinkedHashSet<>();
+        collectDependencies(stmt.getExpr(), Collections.emptySet(), dependencies);
+        evaluateOut(stmt, dependencies).run();
+    }
+
+    /**
+     * Evaluates expression of the out statement.
+     * @param dependencies slots of the variables whose errors are reported by the statement (see Variable.reportError)
+     * @return an action that reports the errors if any and prints the value; 
+     * it should be run in source order (see executeConcurrently)
+     */
+    private Runnable evaluateOut(OutStatement stmt, Collection<Integer> dependencies) {
+        final List<Diagnostic> diagnostics = new ArrayList<>();
+        final List<Diagnostic> outer = DEFERRED.get();
+        DEFERRED.set(diagnostics);
+        Value value;
+        try {
+            // a lazy sequence is materialized before printing, so that an error does not produce partial output
+            value = materialize(evaluatePlan(stmt.getExpr()), stmt.getExpr());
+        } catch (EvaluationException ex) {
+            report(ex);
+            value = Value.ERROR;
+        } finally {
+            DEFERRED.set(outer);
+        }
+        final Value result = value;
+        return () -> {
+            reportErrors(dependencies);
+            report(diagnostics);
+            printLine(result);
+        };
+    }
+
+    /** Reports diagnostics deferred by evaluateOut or Variable.evaluateValue */
+    private void report(List<Diagnostic> diagnostics) {
+        for (Diagnostic diagnostic : diagnostics) {
+            report(diagnostic);
+        }
+    }
+
+    /** Reports errors of the variables' initializers, dependencies first; see Variable.reportError */
+    private void reportErrors(Collection<Integer> slots) {
+        for (int slot : slots) {
+            if (globals[slot] != null) {
+                globals[slot].reportError();
+            }
+        }
+    }
+
+    private void printLine(Value value) {
         print(value);
         print("\n");
     }
@@ -146,27 +676,41 @@ public class EvaluatorImpl {
                 break;
             case SEQ_INT:
                 {
-                    boolean first = true;
-                    for (int i : value.getIntArray()) {
-                        if (first) {
-                            first = false;
-                        } else {
-                            print(", ");
+                    final long size = value.getSize();
+                    final SeqCursor cursor = value.openCursor();
+                    final int[] buf = new int[(int) Math.min(size, BLOCK_SIZE)];
+                    for (long blockStart = 0; blockStart < size; blockStart += BLOCK_SIZE) {
+                        checkCancelled();
+                        final int cnt = (int) Math.min(BLOCK_SIZE, size - blockStart);
+                        if (!cursor.fill(blockStart, buf, 0, cnt)) {
+                            break;
+                        }
+                        for (int i = 0; i < cnt; i++) {
+                            if (blockStart + i > 0) {
+                                print(", ");
+                            }
+                            print(buf[i]);
                         }
-                        print(i);
                     }
                 }
                 break;
             case SEQ_FLOAT:
                 {
-                    boolean first = true;
-                    for (double f : value.getFloatArray()) {
-                        if (first) {
-                            first = false;
-                        } else {
-                            print(", ");
+                    final long size = value.getSize();
+                    final SeqCursor cursor = value.openCursor();
+                    final double[] buf = new double[(int) Math.min(size, BLOCK_SIZE)];
+                    for (long blockStart = 0; blockStart < size; blockStart += BLOCK_SIZE) {
+                        checkCancelled();
+                        final int cnt = (int) Math.min(BLOCK_SIZE, size - blockStart);
+                        if (!cursor.fill(blockStart, buf, 0, cnt)) {
+                            break;
+                        }
+                        for (int i = 0; i < cnt; i++) {
+                            if (blockStart + i > 0) {
+                                print(", ");
+                            }
+                            print(buf[i]);
                         }
-                        print(f);
                     }
                 }
                 break;
@@ -178,18 +722,32 @@ public class EvaluatorImpl {
         }
     }
 
-    /** Evaluates expression; NB: Never returns null. */
-    private Value evaluate(Expr expr) {
+    /**
+     * Evaluates a top level expression: lowers it into operations (see prepareExpr) and runs them.
+     * The AST walker (evaluate) is used only if this is suppressed (jbs.suppress.prepare.expressions)
+     * or if the expression can not be lowered, i.e. it is erroneous; then the walker reports the errors.
+     * NB: Never returns null; can throw EvaluationException
+     */
+    private Value evaluatePlan(Expr expr) {
+        final Op op = SUPPRESS_PREPARED_EXPRESSIONS ? null : prepareExpr(expr);
+        return (op == null) ? evaluate(expr, NO_FRAME) : op.evalValue();
+    }
+
+    /** 
+     * Evaluates expression; NB: Never returns null. 
+     * @param frame parameters of the lambda the expression belongs to, see resolve
+     */
+    private Value evaluate(Expr expr, LambdaVariable[] frame) {
         switch (expr.getNodeKind()) {
             case PAREN:
-                return evaluate(((ParenExpr) expr).getFirstChild());
+                return evaluate(((ParenExpr) expr).getFirstChild(), frame);
             case INT:
                 return Value.create(((IntLiteral) expr).getValue());
             case FLOAT:
                 return Value.create(((FloatLiteral) expr).getValue());
             case ID:
                 IdExpr id = (IdExpr) expr;
-                Variable var = getSymtab().get(id.getName());
+                Variable var = resolve(id, frame);
                 if (var != null) {
                     return var.getValue();
                 } else {                    
@@ -199,13 +757,13 @@ public class EvaluatorImpl {
                     return Value.ERROR;
                 }
             case OP:
-                return evaluateOperation((BinaryOpExpr) expr);
+                return evaluateOperation((BinaryOpExpr) expr, frame);
             case SEQ:
-                return evaluateSequence((SeqExpr) expr);
+                return evaluateSequence((SeqExpr) expr, frame);
             case MAP:
-                return evaluateMap((MapExpr)expr);
+                return evaluateMap((MapExpr)expr, frame);
             case REDUCE:
-                return evaluateReduce((ReduceExpr)expr);
+                return evaluateReduce((ReduceExpr)expr, frame);
             case STRING:
             case DECL:
             case OUT:
@@ -216,19 +774,20 @@ public class EvaluatorImpl {
         }
     }
     
-    private Value evaluateMap(MapExpr expr) {
+    private Value evaluateMap(MapExpr expr, LambdaVariable[] frame) {
         Expr seqExpr = expr.getSequence();
         DeclStatement var = expr.getVar();
         Expr transformation = expr.getTransformation();
         // if either of the below is null, this should have already been reported
         if (seqExpr != null && var != null && transformation != null) {
-            Value seqValue = evaluate(seqExpr);
+            Value seqValue = evaluate(seqExpr, frame);
             Type type = seqValue.getType();
             switch (type) {
                 case SEQ_INT:
-                    return evaluateMap(seqValue.getIntArray(), var, transformation);
                 case SEQ_FLOAT:
-                    return evaluateMap(seqValue.getFloatArray(), var, transformation);
+                    // NB: map is lazy; elements are calculated by those who consume the sequence
+                    final boolean isFloat = (type == Type.SEQ_FLOAT) || transformation.getType() == Type.FLOAT;
+                    return new MapValue(seqValue, var, transformation, isFloat ? Type.SEQ_FLOAT : Type.SEQ_INT);
                 case ERRONEOUS:
                     return Value.ERROR;
                 case INT:
@@ -242,116 +801,155 @@ public class EvaluatorImpl {
         return Value.ERROR;
     }
 
-    private Value evaluateMap(Object array, DeclStatement varDecl, Expr transformation) {
-        assert (array instanceof int[] || array instanceof double[]);
-        final int size = (array instanceof int[]) ? ((int[]) array).length : ((double[]) array).length;
-        // we check executor.getActiveCount() tp prevent further parallelization within already parallelized processing
-        int numThreads = (size >= minParallelizationCount && executor.getActiveCount() == 0) ? this.threadCount : 1;
-        final boolean isFloat = (array instanceof double[] ) || transformation.getType() == Type.FLOAT;
-        Object out = isFloat ? new double[size] : new int[size];
-        if (numThreads == 1) {
-            if (!evaluateMapImpl(array, out, 0, size, varDecl, transformation)) {
-                return Value.ERROR;
+    /**
+     * Makes sure all sequence elements are calculated and stored in an array,
+     * unless the array does not fit into memory (see planStorage).
+     * @param node the expression the sequence comes from; used for diagnostics
+     * @return either the same value (if it's already materialized or should stay lazy) or a new array value
+     */
+    private Value materialize(Value seq, ASTNode node) {
+        if (seq.isMaterialized() || !isSequence(seq)) {
+            return seq;
+        }
+        final long size = seq.getSize();
+        final boolean isFloat = seq.getType() == Type.SEQ_FLOAT;
+        Storage storage = planStorage(size, isFloat);
+        Value out = allocate(storage, size, isFloat);
+        if (out == null && (storage == Storage.ARRAY || storage == Storage.SEGMENTS || storage == Storage.PACKED)) {
+            // the estimate was too optimistic
+            storage = fallbackStorage();
+            out = allocate(storage, size, isFloat);
+        }
+        if (out == null && storage == Storage.SPILL) {
+            storage = "fail".equals(memoryPolicy) ? Storage.NONE : Storage.STREAM;
+        }
+        if (storage == Storage.STREAM) {
+            return seq;
+        } else if (storage == Storage.NONE) {
+            error(node, "sequence of " + size + " elements (" + (size * elementSize(isFloat) >> 20) + " MB) does not fit into memory");
+            return Value.ERROR;
+        }
+        final Value target = out;
+        final double cost = useCostModel() ? seq.getElementCost() : 0;
+        final boolean parallel = isParallel(size, cost);
+        final RemoteSeq remote = parallel ? remoteSeq(seq, cost) : null;
+        final Slicer<Boolean> slicer = (from, to) -> materializeImpl(seq, target, from, to);
+        final Combiner<Boolean> combiner = (left, right) -> left && right;
+        Boolean ok = (remote != null)
+                ? runRemote(RemoteWorkers.get(workerCount), size, (from, to) -> (in, o) -> storeRemoteSlice(RemoteProtocol.materialize(remote, from, to, isFloat).call(in, o), target, from, to), slicer, combiner)
+                : runSlices(size, parallel, minGrain(cost), slicer, combiner);
+        if (ok == null || !ok) {
+            return Value.ERROR;
+        }
+        return target;
+    }
+
+    /**
+     * Allocates storage for a sequence
+     * @return the value to be filled or null if storage is not allocated (or could not be allocated)
+     */
+    private Value allocate(Storage storage, long size, boolean isFloat) {
+        try {
+            switch (storage) {
+                case ARRAY:
+                    return isFloat ? Value.create(new double[(int) size]) : Value.create(new int[(int) size]);
+                case SEGMENTS:
+                    return new SegmentedValue(size, isFloat, offHeap ? ByteBuffer::allocateDirect : null);
+                case PACKED:
+                    return new PackedValue(size, isFloat);
+                case SPILL:
+                    final Path file = Files.createTempFile(Paths.get(spillDir), "jbs", ".seq");
+                    spillFiles.add(file);
+                    try (SpillFile spill = new SpillFile(file, size * elementSize(isFloat))) {
+                        return new SegmentedValue(size, isFloat, spill);
+                    }
+                default:
+                    return null;
             }
-        } else {
-            Future<Boolean>[] tasks = new Future[numThreads];
-            final int sliceSize = size / numThreads;
-            for (int slice = 0; slice < numThreads; slice++) {
-                int from = sliceSize*slice;
-                int to = (slice == numThreads-1) ? size : from + sliceSize;
-                tasks[slice] = executor.submit(() ->
-                        evaluateMapImpl(array, out, from, to, varDecl, transformation));
-            }
-            if (!waitTasks(tasks, null, (Boolean ok) -> ok != null && ok.booleanValue())) {
-                return Value.ERROR;
+        } catch (OutOfMemoryError ex) {
+            return null; // whatever has been allocated is garbage now
+        } catch (IOException ex) {
+            // not an error in the script: the sequence stays lazy
+            Logger.getLogger(EvaluatorImpl.class.getName()).log(Level.WARNING, "Can not spill a sequence to disk", ex);
+            return null;
+        }
+    }
+
+    /** How a sequence is stored when it is materialized; see planStorage */
+    private enum Storage {
+        /** a single array */
+        ARRAY,
+        /** fixed-size segments, see SegmentedValue */
+        SEGMENTS,
+        /** compact encodings, see PackedValue */
+        PACKED,
+        /** segments in a memory mapped temporary file, see SpillFile */
+        SPILL,
+        /** not stored at all: the sequence stays lazy, elements are calculated each time it is read */
+        STREAM,
+        /** can not be stored: an error should be reported */
+        NONE
+    }
+
+    /**
+     * Memory governor: estimates footprint of a sequence before anything is allocated
+     * and decides how to store it. A sequence is stored if it fits into the heap that is not in use yet
+     * (off-heap segments are not checked in advance): in compact encodings (jbs.storage.packed),
+     * otherwise in an array if it is not larger than a segment or in segments if it is.
+     * The estimate does not count on compression: a packed sequence is never much larger than an array. If it does not fit, it is up to the policy (jbs.memory.policy).
+     * Sequences that are larger than jbs.spill.bytes are spilled to disk anyway.
+     */
+    private Storage planStorage(long size, boolean isFloat) {
+        if (size * elementSize(isFloat) > spillBytes) {
+            return Storage.SPILL;
+        }
+        if (offHeap && size > SegmentedValue.SEGMENT_SIZE) {
+            return Storage.SEGMENTS;
+        }
+        final Runtime rt = Runtime.getRuntime();
+        final long available = rt.maxMemory() - (rt.totalMemory() - rt.freeMemory());
+        if (size * elementSize(isFloat) <= available) {
+            if (packed) {
+                return Storage.PACKED;
             }
+            return (size <= SegmentedValue.SEGMENT_SIZE) ? Storage.ARRAY : Storage.SEGMENTS;
         }
-        return (out instanceof int[]) ? Value.create((int[])out) : Value.create((double[]) out);
+        return fallbackStorage();
     }
 
-    private Boolean evaluateMapImpl(Object array, Object out, final int from, final int to, DeclStatement varDecl, Expr transformation) {
-        assert (array instanceof int[] || array instanceof double[]);
-        assert (out instanceof int[] || out instanceof double[]);
-        // input arrays and its size
-        // NB: as to input arrays, we always ise intIn if (array instanceof int[]), otherwise float.
-        int[] intIn;
-        double[] floatIn;
-        final int size;
-        if (array instanceof int[]) {
-            intIn = (int[]) array;
-            size = intIn.length;
-            floatIn = null;
-        } else {
-            floatIn = (double[]) array;
-            size = floatIn.length;
-            intIn = null;
+    /** @return storage for a sequence that does not fit into memory: depends on jbs.memory.policy */
+    private Storage fallbackStorage() {
+        switch (memoryPolicy) {
+            case "fail":
+                return Storage.NONE;
+            case "spill":
+                return Storage.SPILL;
+            default:
+                return Storage.STREAM;
         }
-        final int[] intOut = (out instanceof int[]) ? (int[]) out : null;
-        final double[] floatOut = (out instanceof double[]) ? (double[]) out : null;
-        try {
-            // smart variable:
-            class SmartValue extends Value {
-                public int idx;
-                @Override
-                public Type getType() {
-                    return (intIn != null) ? Type.INT : Type.FLOAT;
-                }
+    }
 
-                @Override
-                public int getInt() {
-                    return intIn[idx];
-                }
+    static int elementSize(boolean isFloat) {
+        return isFloat ? Double.BYTES : Integer.BYTES;
+    }
 
-                @Override
-                public double getFloat() {
-                    return floatIn[idx];
-                }
-            }
-            final SmartValue smartValue = new SmartValue();
+    private Boolean materializeImpl(Value seq, Value out, long from, long to) {
+        return materializeImpl(seq.openCursor(), out, from, to);
+    }
 
-            Variable smartVar = new Variable(varDecl) {
-                @Override
-                public Value getValue() {
-                    return smartValue;
-                }
-            };
-            pushSymtab();
-            getSymtab().put(smartVar);
-            Producer<Value> valueProducer = prepareExpressionIfPossible(transformation, smartVar);
-            for (smartValue.idx = from; smartValue.idx < to; smartValue.idx++) {
-//                if (Thread.currentThread().isInterrupted()) {
-//                    return false;
-//                }
-                Value v = valueProducer.produce();
-                Type type = v.getType();
-                switch (type) {                    
-                    case INT:
-                        if (intOut != null) {
-                            intOut[smartValue.idx] = v.getInt();
-                        } else {
-                            floatOut[smartValue.idx] = v.getInt();
-                        }
-                        break;
-                    case FLOAT:
-                        floatOut[smartValue.idx] = v.getFloat();
-                        break;
-                    case ERRONEOUS:
-                        return false;
-                    case SEQ_INT:
-                    case SEQ_FLOAT:
-                    case STRING:
-                    default:
-                        error(transformation, "unexpected type: " + type);
-                        return false;
-                }
-            }
-            return true;
-        } finally {
-            popSymtab();
+    private static Boolean materializeImpl(SeqCursor cursor, Value out, long from, long to) {
+        if (out instanceof SegmentedValue) {
+            return ((SegmentedValue) out).fill(cursor, from, to);
+        } else if (out instanceof PackedValue) {
+            return ((PackedValue) out).fill(cursor, from, to);
+        } else if (out instanceof Value.IntArrayValue) {
+            return cursor.fill(from, out.getIntArray(), (int) from, (int) (to - from));
+        } else {
+            return cursor.fill(from, out.getFloatArray(), (int) from, (int) (to - from));
         }
     }
 
-    private Value evaluateReduce(ReduceExpr expr) {
+    private Value evaluateReduce(ReduceExpr expr, LambdaVariable[] frame) {
         final Expr seqExpr = expr.getSequence();
         final Expr defValueExpr = expr.getDefValue();        
         final DeclStatement prev = expr.getPrev();
@@ -359,18 +957,17 @@ public class EvaluatorImpl {
         final Expr transformation = expr.getTransformation();
         // if either of the below is null, this should have already been reported
         if (seqExpr != null && defValueExpr != null && prev != null && curr != null && transformation != null) {
-            Value defValue = evaluate(defValueExpr);
+            Value defValue = evaluate(defValueExpr, frame);
             if (!isArithmetic(defValue)) {
                 error(defValueExpr, "expression should be either int or float");
                 return Value.ERROR;
             }
-            Value seqValue = evaluate(seqExpr);
+            Value seqValue = evaluate(seqExpr, frame);
             Type type = seqValue.getType();
             switch (type) {
                 case SEQ_INT:
-                    return evaluateReduce(seqValue.getIntArray(), defValue, prev, curr, transformation);
                 case SEQ_FLOAT:
-                    return evaluateReduce(seqValue.getFloatArray(), defValue, prev, curr, transformation);
+                    return evaluateReduce(seqValue, defValue, prev, curr, transformation);
                 case ERRONEOUS:
                     return Value.ERROR;
                 case INT:
@@ -383,204 +980,1253 @@ public class EvaluatorImpl {
         }
         return Value.ERROR;        
     }
-    private Producer<Value> prepareExpressionIfPossible(Expr expr, Variable... vars) {
-        Op transfOp = SUPPRESS_PREPARED_EXPRESSIONS ? null : prepareExpr(expr, vars);
-        Producer<Value> valueProducer;
-        if (transfOp != null) {
-            if (transfOp.getReturnType() == Op.ReturnType.INT) {
-                OpI transfOpI = (OpI) transfOp;
-                valueProducer = () -> Value.create(transfOpI.eval());
-            } else {
-                OpF transfOpF = (OpF) transfOp;
-                valueProducer = () -> Value.create(transfOpF.eval());
+
+    private Value evaluateReduce(Value seq, Value defValue, DeclStatement prevDecl, DeclStatement currDecl, Expr transformation) {
+        assert isSequence(seq);
+        final Value closedForm = SUPPRESS_PREPARED_EXPRESSIONS ? null : evaluateIdiom(seq, defValue, prevDecl, currDecl, transformation);
+        if (closedForm != null) {
+            return closedForm;
+        }
+        final long size = seq.getSize();
+        final boolean isFloat = isFloatReduce(seq, defValue, transformation);
+        final double cost = useCostModel() ? seq.getElementCost() + reduceCost(seq, isFloat, prevDecl, currDecl, transformation) : 0;
+        final boolean parallel = isParallel(size, cost);
+        // float results depend on the order of operations, so the order should not depend on thread count
+        final boolean fixedTree = isFloat && deterministicReduce && size > REDUCE_LEAF;
+        // only affine transformations can be split between threads, see AffineForm
+        if ((parallel || fixedTree) && prepareAffineForm(seq, isFloat, prevDecl, currDecl, transformation) != null) {
+            Slicer<AffinePartial> slicer = (from, to) -> reduceAffineImpl(seq, from, to, isFloat, compensatedReduce, prevDecl, currDecl, transformation);
+            Combiner<AffinePartial> combiner = (left, right) -> (left == null || right == null) ? null : left.then(right);
+            final RemoteSeq remote = parallel ? remoteSeq(seq, cost) : null;
+            final String[] lambda = (remote != null) ? RemoteProtocol.toSource(transformation, prevDecl, currDecl) : null;
+            AffinePartial partial = (lambda != null)
+                    ? runRemote(RemoteWorkers.get(workerCount), size, (from, to) -> RemoteProtocol.reduce(remote, from, to, isFloat, compensatedReduce, lambda), slicer, combiner)
+                    : fixedTree
+                    ? runTree(size, parallel, minGrain(cost), slicer, combiner)
+                    : runSlices(size, true, minGrain(cost), slicer, combiner);
+            if (partial == null) {
+                return Value.ERROR;
+            }
+            final Value result = partial.apply(defValue);
+            // composition of slices is not exact beyond double range (say, Infinity times a multiplier that underflowed to 0 is NaN),
+            // so a result that is not finite is recalculated by a plain left fold
+            if (result.getType() != Type.FLOAT || Double.isFinite(result.getFloat())) {
+                return result;
             }
-        } else {
-            valueProducer = () -> evaluate(expr);
         }
-        return valueProducer;
+        return evaluateReduceImpl(seq, 0, size, defValue, prevDecl, currDecl, transformation);
     }
 
-    private boolean isAssociative(Expr expr) {
-        //throw new UnsupportedOperationException("isAssociative not yet implemented");
-        return true;
+    /** @return estimated cost of the reduce transformation per element, see CostModel */
+    private double reduceCost(Value seq, boolean isFloat, DeclStatement prevDecl, DeclStatement currDecl, Expr transformation) {
+        if (SUPPRESS_PREPARED_EXPRESSIONS) {
+            return CostModel.WALKER_COST;
+        }
+        final LambdaVariable prev = new LambdaVariable(prevDecl, isFloat ? Type.FLOAT : Type.INT);
+        final LambdaVariable curr = new LambdaVariable(currDecl, (seq.getType() == Type.SEQ_INT) ? Type.INT : Type.FLOAT);
+        return CostModel.opCost(prepareLambda(transformation, prev, curr), kernelCompiler != null);
     }
 
-    private Value evaluateReduce(Object array, Value defValue, DeclStatement prevDecl, DeclStatement currDecl, Expr transformation) {
-        assert (array instanceof int[] || array instanceof double[]);
-        final int size = (array instanceof int[]) ? ((int[]) array).length : ((double[]) array).length;
-        // we check executor.getActiveCount() tp prevent further parallelization within already parallelized processing
-        int numThreads = (size >= minParallelizationCount && isAssociative(transformation) && executor.getActiveCount() == 0) ? this.threadCount : 1;
-        if (numThreads == 1) {
-            return evaluateReduceImpl(array, 0, size, defValue, prevDecl, currDecl, transformation);
-        } else {
-            Future<Value>[] tasks = new Future[numThreads];
-            final int sliceSize = size / numThreads;
-            for (int slice = 0; slice < numThreads; slice++) {
-                int from = sliceSize*slice;
-                int to = (slice == numThreads-1) ? size : from + sliceSize;
-                tasks[slice] = executor.submit(() ->
-                        evaluateReduceImpl(array, from, to, defValue, prevDecl, currDecl, transformation));
-            }
-            Value[] out = new Value[numThreads];
-            if (waitTasks(tasks, out, (Value v) -> v != null && v.getType() != Type.ERRONEOUS)) {
-                Object arr;
-                if (out[0].getType() == Type.INT) {
-                    int[] t = new int[out.length];
-                    for (int i = 0; i < t.length; i++) {
-                        t[i] = out[i].getInt();
-                    }
-                    arr = t;
-                } else if (out[0].getType() == Type.FLOAT) {
-                    double[] t = new double[out.length];
-                    for (int i = 0; i < t.length; i++) {
-                        t[i] = out[i].getFloat();
-                    }
-                    arr = t;
-                } else {
-                    return Value.ERROR;
-                }
-                return evaluateReduceImpl(arr, 1, out.length, out[0], prevDecl, currDecl, transformation);
+    /** Whether the reduce accumulator is float (otherwise it is int) */
+    private static boolean isFloatReduce(Value seq, Value defValue, Expr transformation) {
+        return defValue.getType() == Type.FLOAT || seq.getType() == Type.SEQ_FLOAT || transformation.getType() == Type.FLOAT;
+    }
 
-            } else {
+    /** @return result of the reduce if it matches an idiom with a closed form (see ReduceIdiom), otherwise null */
+    private Value evaluateIdiom(Value seq, Value defValue, DeclStatement prevDecl, DeclStatement currDecl, Expr transformation) {
+        final RangeShape shape = shapeOf(seq);
+        if (shape == null) {
+            return null;
+        }
+        final boolean isFloat = isFloatReduce(seq, defValue, transformation);
+        final LambdaVariable prev = new LambdaVariable(prevDecl, isFloat ? Type.FLOAT : Type.INT);
+        final LambdaVariable curr = new LambdaVariable(currDecl, shape.isFloat ? Type.FLOAT : Type.INT);
+        final Op op = prepareLambda(transformation, prev, curr);
+        if (op == null || (!isFloat && op.getReturnType() != Op.ReturnType.INT)) {
+            return null;
+        }
+        final ReduceIdiom idiom = ReduceIdiom.of(op, prev, curr);
+        return (idiom == null) ? null : idiom.apply(shape, defValue, this::checkCancelled);
+    }
+
+    /**
+     * Elements of a range-shaped sequence: first + step * k for k in [0, size);
+     * that is a range or a map of a range-shaped sequence with a linear transformation (see linear).
+     * Int elements are taken modulo 2^32, the same as int operations give them;
+     * exact means that neither int overflows nor float rounding occurs when calculating elements.
+     */
+    private static final class RangeShape {
+        public final long first;
+        public final long step;
+        public final long size;
+        public final boolean isFloat;
+        public final boolean exact;
+        public RangeShape(long first, long step, long size, boolean isFloat, boolean exact) {
+            assert exact || !isFloat;
+            this.first = first;
+            this.step = step;
+            this.size = size;
+            this.isFloat = isFloat;
+            this.exact = exact;
+        }
+        public long at(long index) {
+            return first + step * index;
+        }
+        /** @return maximal absolute value of elements (if exact) */
+        public double bound() {
+            return Math.max(Math.abs((double) first), Math.abs((double) at(Math.max(size - 1, 0))));
+        }
+    }
+
+    /** @return shape of the sequence or null if it is not range-shaped */
+    private RangeShape shapeOf(Value seq) {
+        if (seq instanceof RangeValue) {
+            final RangeValue range = (RangeValue) seq;
+            return new RangeShape(range.first, range.stride, range.size, false, true);
+        } else if (!(seq instanceof MapValue)) {
+            return null;
+        }
+        final MapValue map = (MapValue) seq;
+        final RangeShape source = shapeOf(map.source);
+        if (source == null) {
+            return null;
+        }
+        final LambdaVariable var;
+        final Op op;
+        if (map.template != null) {
+            var = map.template.var;
+            op = map.template.op;
+        } else {
+            var = new LambdaVariable(map.varDecl, map.source.getType() == Type.SEQ_INT ? Type.INT : Type.FLOAT);
+            op = prepareLambda(map.transformation, var);
+        }
+        final long[] form = (op == null) ? null : linear(op, var);
+        if (form == null || (map.type == Type.SEQ_INT && op.getReturnType() != Op.ReturnType.INT)) {
+            return null;
+        }
+        final boolean isFloat = map.type == Type.SEQ_FLOAT;
+        final boolean exact = source.exact && isExact(op, new LambdaVariable[] { var }, new double[] { source.bound() });
+        if (isFloat && !exact) {
+            return null;
+        }
+        return new RangeShape(form[0] + form[1] * source.first, form[1] * source.step, source.size, isFloat, exact);
+    }
+
+    /** Doubles up to 2^52 (integer ones) are exact, so are their sums and differences */
+    private static final double MAX_EXACT = 0x1p52;
+
+    /**
+     * Analyzes op as a linear function of vars with integer coefficients: k0 + k1 * vars[0] + k2 * vars[1] + ...
+     * Constants, lambda parameters, additions, subtractions and multiplications by constants are allowed;
+     * such operations never fail. Int operations wrap around, so the result is only correct modulo 2^32
+     * unless isExact confirms it.
+     * @return coefficients {k0, k1, ...} or null
+     */
+    private static long[] linear(Op op, LambdaVariable... vars) {
+        try {
+            return linearImpl(op, vars);
+        } catch (ArithmeticException ex) {
+            return null; // coefficients overflow long
+        }
+    }
+
+    private static long[] linearImpl(Op op, LambdaVariable... vars) {
+        final long[] form = new long[vars.length + 1];
+        if (op instanceof ConstI) {
+            form[0] = ((ConstI) op).value;
+        } else if (op instanceof ConstF) {
+            final double value = ((ConstF) op).value;
+            if (value != Math.rint(value) || Math.abs(value) > MAX_EXACT) {
+                return null;
+            }
+            form[0] = (long) value;
+        } else if (op instanceof ArgI || op instanceof ArgF) {
+            final int index = KernelCompiler.indexOf(op, vars);
+            if (index < 0) {
+                return null;
+            }
+            form[index + 1] = 1;
+        } else if (op instanceof SharedI || op instanceof SharedF) {
+            return linearImpl(KernelCompiler.shared(op), vars);
+        } else if (op.getOpKind() != null) {
+            final long[] left = linearImpl(op.getLeft(), vars);
+            final long[] right = (left == null) ? null : linearImpl(op.getRight(), vars);
+            if (right == null) {
+                return null;
+            }
+            switch (op.getOpKind()) {
+                case ADD:
+                    for (int i = 0; i < form.length; i++) {
+                        form[i] = Math.addExact(left[i], right[i]);
+                    }
+                    break;
+                case SUB:
+                    for (int i = 0; i < form.length; i++) {
+                        form[i] = Math.subtractExact(left[i], right[i]);
+                    }
+                    break;
+                case MUL:
+                    final boolean isLeftConst = isConstantForm(left);
+                    if (!isLeftConst && !isConstantForm(right)) {
+                        return null;
+                    }
+                    final long factor = isLeftConst ? left[0] : right[0];
+                    final long[] other = isLeftConst ? right : left;
+                    for (int i = 0; i < form.length; i++) {
+                        form[i] = Math.multiplyExact(factor, other[i]);
+                    }
+                    break;
+                default:
+                    return null;
+            }
+        } else {
+            return null;
+        }
+        return form;
+    }
+
+    private static boolean isConstantForm(long[] form) {
+        for (int i = 1; i < form.length; i++) {
+            if (form[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks that a linear op (see linear) evaluated for vars within the given bounds (by absolute value)
+     * gives exactly k0 + k1 * vars[0] + ..., i.e. that no operation overflows int or rounds float
+     */
+    private static boolean isExact(Op op, LambdaVariable[] vars, double[] bounds) {
+        if (op instanceof SharedI || op instanceof SharedF) {
+            return isExact(KernelCompiler.shared(op), vars, bounds);
+        }
+        final long[] form = linear(op, vars);
+        if (form == null) {
+            return false;
+        }
+        double bound = Math.abs((double) form[0]);
+        for (int i = 0; i < vars.length; i++) {
+            bound += Math.abs((double) form[i + 1]) * bounds[i];
+        }
+        if (bound > ((op.getReturnType() == Op.ReturnType.INT) ? Integer.MAX_VALUE : MAX_EXACT)) {
+            return false;
+        }
+        return op.getOpKind() == null || isExact(op.getLeft(), vars, bounds) && isExact(op.getRight(), vars, bounds);
+    }
+
+    /**
+     * Reduce transformations that have closed forms over range-shaped sequences (see RangeShape),
+     * where f is linear with integer coefficients (see linear):
+     * sums x + f(y) (including counts like x + 1) are calculated in O(1),
+     * as well as transformations that ignore the accumulator (their result is f(last element));
+     * int products x * f(y) are calculated by a tight loop that stops as soon as the product is zero,
+     * which happens after at most 64 even factors.
+     * Int results are the same as the step by step evaluation gives, since both are taken modulo 2^32;
+     * float ones are calculated only if all intermediate values are exact integers, otherwise the result
+     * would depend on the order of additions.
+     */
+    private static final class ReduceIdiom {
+
+        private enum Kind {
+            SUM,
+            PRODUCT,
+            LAST
+        }
+
+        private final Kind kind;
+        /** linear form of the transformation (SUM, LAST) or of the factor (PRODUCT), see linear */
+        private final long[] form;
+        private final Op op;
+        private final LambdaVariable prev;
+        private final LambdaVariable curr;
+
+        private ReduceIdiom(Kind kind, long[] form, Op op, LambdaVariable prev, LambdaVariable curr) {
+            this.kind = kind;
+            this.form = form;
+            this.op = op;
+            this.prev = prev;
+            this.curr = curr;
+        }
+
+        /** @return idiom of the prepared transformation or null if there is none */
+        public static ReduceIdiom of(Op op, LambdaVariable prev, LambdaVariable curr) {
+            final long[] form = linear(op, prev, curr);
+            if (form != null) {
+                if (form[1] == 1) {
+                    return new ReduceIdiom(Kind.SUM, form, op, prev, curr);
+                } else if (form[1] == 0) {
+                    return new ReduceIdiom(Kind.LAST, form, op, prev, curr);
+                }
+                return null;
+            }
+            if (op instanceof MulII) {
+                final Op factor = isArg(op.getLeft(), prev) ? op.getRight() : isArg(op.getRight(), prev) ? op.getLeft() : null;
+                final long[] factorForm = (factor == null) ? null : linear(factor, prev, curr);
+                if (factorForm != null && factorForm[1] == 0) {
+                    return new ReduceIdiom(Kind.PRODUCT, factorForm, op, prev, curr);
+                }
+            }
+            return null;
+        }
+
+        private static boolean isArg(Op op, LambdaVariable var) {
+            return op instanceof ArgI && ((ArgI) op).var == var;
+        }
+
+        /**
+         * @param cancellationPoint called once per BLOCK_SIZE factors of a product (see checkCancelled):
+         *  unless it comes to zero, a product is as long as the range
+         * @return result of the reduce or null if it can not be calculated in closed form
+         */
+        public Value apply(RangeShape shape, Value defValue, Runnable cancellationPoint) {
+            final long size = shape.size;
+            if (size == 0 || shape.isFloat != (curr.getType() == Type.FLOAT)) {
+                return null;
+            }
+            if (prev.getType() == Type.INT) {
+                final int def = defValue.getInt();
+                switch (kind) {
+                    case SUM:
+                        // def + sum of (k0 + kc * (first + step * i)); everything wraps around the same as int operations do
+                        return Value.create((int) (def + size * form[0] + form[2] * (size * shape.first + shape.step * triangle(size))));
+                    case LAST:
+                        return Value.create((int) (form[0] + form[2] * shape.at(size - 1)));
+                    case PRODUCT:
+                        int acc = def;
+                        for (long i = 0; i < size && acc != 0; i++) {
+                            if ((i & (BLOCK_SIZE - 1)) == 0) {
+                                cancellationPoint.run();
+                            }
+                            acc *= (int) (form[0] + form[2] * (int) shape.at(i));
+                        }
+                        return Value.create(acc);
+                    default:
+                        throw new AssertionError(kind.name());
+                }
+            }
+            if (kind == Kind.PRODUCT || !shape.exact) {
+                return null;
+            }
+            final double def = (defValue.getType() == Type.INT) ? defValue.getInt() : defValue.getFloat();
+            if (def != Math.rint(def) || Math.abs(def) > MAX_EXACT) {
+                return null;
+            }
+            // bound of the accumulator: |def| + size * (the biggest term)
+            final double term = Math.max(Math.abs(form[0] + form[2] * (double) shape.first), Math.abs(form[0] + form[2] * (double) shape.at(size - 1)));
+            final double bound = Math.abs(def) + size * term;
+            if (bound > MAX_EXACT || !isExact(op, new LambdaVariable[] { prev, curr }, new double[] { bound, shape.bound() })) {
+                return null;
+            }
+            // all values fit into 2^52, so long arithmetic does not overflow
+            final long result = (kind == Kind.SUM)
+                    ? (long) def + size * form[0] + form[2] * (size * shape.first + shape.step * triangle(size))
+                    : form[0] + form[2] * shape.at(size - 1);
+            // a zero can be negative when calculated step by step; leave it to the generic path
+            return (result == 0) ? null : Value.create((double) result);
+        }
+
+        /** @return 0 + 1 + ... + (size - 1) */
+        private static long triangle(long size) {
+            return (size % 2 == 0) ? (size / 2) * (size - 1) : size * ((size - 1) / 2);
+        }
+    }
+
+    /**
+     * Reduce transformation represented as prev * coef + free,
+     * where neither coef nor free depend on prev (the accumulator);
+     * they are evaluated for the current element only.
+     * Null coef or free means 0.
+     *
+     * Applying such a transformation to a slice of elements maps accumulator a to a * M + C
+     * (see AffinePartial); composition of such maps is associative (although not commutative),
+     * so slices can be reduced independently and then combined in order.
+     * This covers sums (x + f(y)), differences (x - f(y)), products (x * f(y)),
+     * linear recurrences (a * x + f(y)) and transformations that ignore the accumulator.
+     * Anything else (say, x * x + y) is not split between threads.
+     */
+    private static final class AffineForm {
+        public final Op coef;
+        public final Op free;
+        public AffineForm(Op coef, Op free) {
+            this.coef = coef;
+            this.free = free;
+        }
+        /** prev + free: the most common case that does not need multiplications */
+        public boolean isSum() {
+            return coef instanceof ConstI && ((ConstI) coef).value == 1
+                    || coef instanceof ConstF && ((ConstF) coef).value == 1.0;
+        }
+    }
+
+    /**
+     * Analyzes transformation and prepares its affine form for the given lambda variables.
+     * @return null if transformation is not affine with respect to the accumulator
+     */
+    private AffineForm prepareAffineForm(Value seq, boolean isFloat, DeclStatement prevDecl, DeclStatement currDecl, Expr transformation) {
+        final LambdaVariable prev = new LambdaVariable(prevDecl, isFloat ? Type.FLOAT : Type.INT);
+        final LambdaVariable curr = new LambdaVariable(currDecl, (seq.getType() == Type.SEQ_INT) ? Type.INT : Type.FLOAT);
+        return prepareAffineForm(prev, curr, transformation);
+    }
+
+    private AffineForm prepareAffineForm(LambdaVariable prev, LambdaVariable curr, Expr transformation) {
+        if (SUPPRESS_PREPARED_EXPRESSIONS) {
+            return null;
+        }
+        AffineForm form = linearize(transformation, prev, curr);
+        if (form != null && prev.getType() == Type.INT) {
+            // int accumulator can not be combined with float coefficients
+            if (form.coef != null && form.coef.getReturnType() != Op.ReturnType.INT
+                    || form.free != null && form.free.getReturnType() != Op.ReturnType.INT) {
+                return null;
+            }
+        }
+        return (form == null) ? null : new AffineForm(hoist(form.coef), hoist(form.free));
+    }
+
+    /** @return affine form of expr with respect to prev or null if it is not affine */
+    private AffineForm linearize(Expr expr, LambdaVariable prev, LambdaVariable curr) {
+        if (expr == null) {
+            return null;
+        }
+        if (!refersTo(expr, prev.getName())) {
+            // prev is not referred, so it is never evaluated; it is passed only to keep the frame layout
+            Op op = prepareScalar(expr, prev, curr);
+            return (op == null) ? null : new AffineForm(null, op);
+        }
+        switch (expr.getNodeKind()) {
+            case PAREN:
+                return linearize(((ParenExpr) expr).getFirstChild(), prev, curr);
+            case ID:
+                // refers to prev => it is prev itself
+                return new AffineForm(new ConstI(1), null);
+            case OP:
+                BinaryOpExpr opExpr = (BinaryOpExpr) expr;
+                AffineForm left = linearize(opExpr.getLeft(), prev, curr);
+                AffineForm right = (left == null) ? null : linearize(opExpr.getRight(), prev, curr);
+                if (right == null) {
+                    return null;
+                }
+                switch (opExpr.getOpKind()) {
+                    case ADD:
+                        return new AffineForm(addOp(left.coef, right.coef), addOp(left.free, right.free));
+                    case SUB:
+                        return new AffineForm(subOp(left.coef, right.coef), subOp(left.free, right.free));
+                    case MUL:
+                        if (left.coef == null) {
+                            return new AffineForm(mulOp(left.free, right.coef), mulOp(left.free, right.free));
+                        } else if (right.coef == null) {
+                            return new AffineForm(mulOp(left.coef, right.free), mulOp(left.free, right.free));
+                        } else {
+                            return null; // prev * prev
+                        }
+                    case DIV:
+                        // integer division is not distributive: (a + b) / c != a / c + b / c
+                        if (right.coef == null && right.free != null && prev.getType() == Type.FLOAT) {
+                            return new AffineForm(divOp(left.coef, right.free, opExpr), divOp(left.free, right.free, opExpr));
+                        }
+                        return null;
+                    case POW:
+                    default:
+                        return null;
+                }
+            default:
+                // map or reduce inside transformation can refer to prev only in its sequence or default value
+                return null;
+        }
+    }
+
+    private static Op addOp(Op left, Op right) {
+        return (left == null) ? right : (right == null) ? left : binaryOp(BinaryOpExpr.OpKind.ADD, left, right);
+    }
+
+    private static Op subOp(Op left, Op right) {
+        return (right == null) ? left : binaryOp(BinaryOpExpr.OpKind.SUB, (left == null) ? new ConstI(0) : left, right);
+    }
+
+    private static Op mulOp(Op left, Op right) {
+        return (left == null || right == null) ? null : binaryOp(BinaryOpExpr.OpKind.MUL, left, right);
+    }
+
+    private static Op divOp(Op left, Op right, ASTNode node) {
+        return (left == null) ? null : binaryOp(BinaryOpExpr.OpKind.DIV, left, right, node);
+    }
+
+    /** Checks whether the expression refers to the given variable (either directly or in nested expressions) */
+    private static boolean refersTo(ASTNode node, CharSequence name) {
+        if (node == null) {
+            return false;
+        }
+        switch (node.getNodeKind()) {
+            case ID:
+                return contentEquals(((IdExpr) node).getName(), name);
+            case PAREN:
+                return refersTo(((ParenExpr) node).getFirstChild(), name);
+            case OP:
+                return refersTo(((BinaryOpExpr) node).getLeft(), name) || refersTo(((BinaryOpExpr) node).getRight(), name);
+            case SEQ:
+                return refersTo(((SeqExpr) node).getFirst(), name) || refersTo(((SeqExpr) node).getLast(), name);
+            case MAP:
+                // lambda bodies do not see outer variables
+                return refersTo(((MapExpr) node).getSequence(), name);
+            case REDUCE:
+                return refersTo(((ReduceExpr) node).getSequence(), name) || refersTo(((ReduceExpr) node).getDefValue(), name);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Result of an affine reduce over a slice: the slice maps accumulator a to a * m + c.
+     * Depending on the accumulator type, either int or float fields are used.
+     * NB: int arithmetic wraps around in the same way as sequential evaluation does,
+     * so int results are exactly the same.
+     */
+    static final class AffinePartial {
+
+        private final boolean isFloat;
+        /** Whether floatErr accumulates rounding errors of floatC; see addCompensated */
+        final boolean compensated;
+        int intM = 1;
+        int intC;
+        double floatM = 1;
+        double floatC;
+        double floatErr;
+
+        public AffinePartial(boolean isFloat, boolean compensated) {
+            this.isFloat = isFloat;
+            this.compensated = compensated;
+        }
+
+        /** Neumaier summation step: adds value to floatC, accumulating the lost low-order bits in floatErr */
+        private void addCompensated(double value) {
+            final double sum = floatC + value;
+            if (Math.abs(floatC) >= Math.abs(value)) {
+                floatErr += (floatC - sum) + value;
+            } else {
+                floatErr += (value - sum) + floatC;
+            }
+            floatC = sum;
+        }
+
+        /** @return partial for this slice immediately followed by the next one */
+        public AffinePartial then(AffinePartial next) {
+            assert isFloat == next.isFloat;
+            AffinePartial result = new AffinePartial(isFloat, compensated);
+            if (isFloat) {
+                result.floatM = floatM * next.floatM;
+                if (compensated) {
+                    result.floatC = floatC * next.floatM;
+                    result.floatErr = floatErr * next.floatM + next.floatErr;
+                    result.addCompensated(next.floatC);
+                } else {
+                    result.floatC = floatC * next.floatM + next.floatC;
+                }
+            } else {
+                result.intM = intM * next.intM;
+                result.intC = intC * next.intM + next.intC;
+            }
+            return result;
+        }
+
+        public Value apply(Value defValue) {
+            if (isFloat) {
+                double a = (defValue.getType() == Type.INT) ? defValue.getInt() : defValue.getFloat();
+                if (compensated) {
+                    AffinePartial result = new AffinePartial(true, true);
+                    result.floatC = a * floatM;
+                    result.floatErr = floatErr;
+                    result.addCompensated(floatC);
+                    return Value.create(result.floatC + result.floatErr);
+                }
+                return Value.create(a * floatM + floatC);
+            } else {
+                return Value.create(defValue.getInt() * intM + intC);
+            }
+        }
+    }
+
+    /**
+     * Reduces a slice starting from the identity map; see AffineForm and AffinePartial
+     * @param compensated whether float sums should be compensated (see jbs.reduce.compensated)
+     */
+    private AffinePartial reduceAffineImpl(Value seq, final long from, final long to, boolean isFloat, boolean compensated, DeclStatement prevDecl, DeclStatement currDecl, Expr transformation) {
+        final boolean isIntIn = seq.getType() == Type.SEQ_INT;
+        final LambdaVariable prev = new LambdaVariable(prevDecl, isFloat ? Type.FLOAT : Type.INT);
+        final LambdaVariable curr = new LambdaVariable(currDecl, isIntIn ? Type.INT : Type.FLOAT);
+        final AffineForm form = prepareAffineForm(prev, curr, transformation);
+        if (form == null) {
+            return null;
+        }
+        final SeqCursor cursor = seq.openCursor();
+        final int[] intIn = isIntIn ? new int[(int) Math.min(BLOCK_SIZE, to - from)] : null;
+        final double[] floatIn = isIntIn ? null : new double[(int) Math.min(BLOCK_SIZE, to - from)];
+        final AffinePartial partial = new AffinePartial(isFloat, isFloat && compensated && form.isSum());
+        // a plain sum is just a reduce of prev + free starting from 0, so it can use a compiled kernel
+        final Kernel sumKernel = (form.isSum() && form.free != null && !partial.compensated && kernelCompiler != null)
+                ? kernelCompiler.compileReduce(binaryOp(BinaryOpExpr.OpKind.ADD, isFloat ? new ArgF(prev) : new ArgI(prev), form.free), prev, curr)
+                : null;
+        for (long blockStart = from; blockStart < to; blockStart += BLOCK_SIZE) {
+            checkCancelled();
+            final int cnt = (int) Math.min(BLOCK_SIZE, to - blockStart);
+            if (!(isIntIn ? cursor.fill(blockStart, intIn, 0, cnt) : cursor.fill(blockStart, floatIn, 0, cnt))) {
+                return null;
+            }
+            if (sumKernel != null && reduceAffineBlockCompiled(sumKernel, partial, intIn, floatIn, cnt)) {
+                continue;
+            }
+            if (isFloat) {
+                reduceAffineBlockF(form, partial, curr, intIn, floatIn, cnt);
+            } else {
+                reduceAffineBlockI(form, partial, curr, intIn, cnt);
+            }
+        }
+        return partial;
+    }
+
+    /** @return false if the kernel failed (see Kernel) */
+    private static boolean reduceAffineBlockCompiled(Kernel sumKernel, AffinePartial partial, int[] intIn, double[] floatIn, int cnt) {
+        try {
+            if (partial.isFloat) {
+                partial.floatC = sumKernel.reduce(partial.floatC, intIn, floatIn, cnt);
+            } else {
+                partial.intC = sumKernel.reduce(partial.intC, intIn, floatIn, cnt);
+            }
+            return true;
+        } catch (ArithmeticException ex) {
+            return false;
+        }
+    }
+
+    private static void reduceAffineBlockI(AffineForm form, AffinePartial partial, LambdaVariable curr, int[] intIn, int cnt) {
+        final OpI coef = (OpI) form.coef;
+        final OpI free = (OpI) form.free;
+        int m = partial.intM;
+        int c = partial.intC;
+        if (form.isSum()) {
+            if (free != null) {
+                for (int i = 0; i < cnt; i++) {
+                    curr.intValue = intIn[i];
+                    c += free.eval();
+                }
+            }
+        } else {
+            for (int i = 0; i < cnt; i++) {
+                curr.intValue = intIn[i];
+                final int k = (coef == null) ? 0 : coef.eval();
+                m *= k;
+                c = c * k + ((free == null) ? 0 : free.eval());
+            }
+        }
+        partial.intM = m;
+        partial.intC = c;
+    }
+
+    private static void reduceAffineBlockF(AffineForm form, AffinePartial partial, LambdaVariable curr, int[] intIn, double[] floatIn, int cnt) {
+        if (partial.compensated) {
+            if (form.free != null) {
+                for (int i = 0; i < cnt; i++) {
+                    if (intIn != null) {
+                        curr.intValue = intIn[i];
+                    } else {
+                        curr.floatValue = floatIn[i];
+                    }
+                    partial.addCompensated(evalF(form.free));
+                }
+            }
+            return;
+        }
+        double m = partial.floatM;
+        double c = partial.floatC;
+        if (form.isSum()) {
+            if (form.free != null) {
+                for (int i = 0; i < cnt; i++) {
+                    if (intIn != null) {
+                        curr.intValue = intIn[i];
+                    } else {
+                        curr.floatValue = floatIn[i];
+                    }
+                    c += evalF(form.free);
+                }
+            }
+        } else {
+            for (int i = 0; i < cnt; i++) {
+                if (intIn != null) {
+                    curr.intValue = intIn[i];
+                } else {
+                    curr.floatValue = floatIn[i];
+                }
+                final double k = (form.coef == null) ? 0 : evalF(form.coef);
+                m *= k;
+                c = c * k + ((form.free == null) ? 0 : evalF(form.free));
+            }
+        }
+        partial.floatM = m;
+        partial.floatC = c;
+    }
+
+    /** Evaluates either int or float operation as float */
+    private static double evalF(Op op) {
+        return (op.getReturnType() == Op.ReturnType.INT) ? ((OpI) op).eval() : ((OpF) op).eval();
+    }
+
+    private Value evaluateReduceImpl(Value seq, final long from, final long to, Value defValue, DeclStatement prevDecl, DeclStatement currDecl, Expr transformation) {
+        assert isArithmetic(defValue);
+        assert isSequence(seq);
+        final boolean isIntIn = seq.getType() == Type.SEQ_INT;
+        final boolean isFloat = isFloatReduce(seq, defValue, transformation);
+        // smart variables: accumulator and current element
+        final LambdaVariable prev = new LambdaVariable(prevDecl, isFloat ? Type.FLOAT : Type.INT);
+        final LambdaVariable curr = new LambdaVariable(currDecl, isIntIn ? Type.INT : Type.FLOAT);
+        if (isFloat) {
+            prev.floatValue = (defValue.getType() == Type.INT) ? defValue.getInt() : defValue.getFloat();
+        } else {
+            prev.intValue = defValue.getInt();
+        }
+        final SeqCursor cursor = seq.openCursor();
+        final int[] intIn = isIntIn ? new int[(int) Math.min(BLOCK_SIZE, to - from)] : null;
+        final double[] floatIn = isIntIn ? null : new double[(int) Math.min(BLOCK_SIZE, to - from)];
+        Op op = SUPPRESS_PREPARED_EXPRESSIONS ? null : prepareLambda(transformation, prev, curr);
+        if (op != null && !isFloat && op.getReturnType() != Op.ReturnType.INT) {
+            op = null; // types do not match the accumulator; use the slow path
+        }
+        final Kernel kernel = (op != null && kernelCompiler != null) ? kernelCompiler.compileReduce(op, prev, curr) : null;
+        for (long blockStart = from; blockStart < to; blockStart += BLOCK_SIZE) {
+            checkCancelled();
+            final int cnt = (int) Math.min(BLOCK_SIZE, to - blockStart);
+            if (!(isIntIn ? cursor.fill(blockStart, intIn, 0, cnt) : cursor.fill(blockStart, floatIn, 0, cnt))) {
                 return Value.ERROR;
             }
+            if (op != null) {
+                reduceBlock(kernel, op, prev, curr, intIn, floatIn, cnt);
+            } else if (!reduceBlockSlow(transformation, prev, curr, intIn, floatIn, cnt)) {
+                return Value.ERROR;
+            }
+        }
+        return isFloat ? Value.create(prev.floatValue) : Value.create(prev.intValue);
+    }
+
+    /**
+     * Runs the compiled kernel if any, otherwise the prepared op.
+     * If the kernel fails (see Kernel), the block is re-evaluated by op that reports the error position.
+     */
+    private static void mapBlock(Kernel kernel, Op op, LambdaVariable var, int[] intIn, double[] floatIn, int[] intOut, double[] floatOut, int offset, int cnt) {
+        if (kernel != null) {
+            try {
+                kernel.map(intIn, floatIn, intOut, floatOut, offset, cnt);
+                return;
+            } catch (ArithmeticException ex) {
+                // fall through
+            }
+        }
+        mapBlock(op, var, intIn, floatIn, intOut, floatOut, offset, cnt);
+    }
+
+    /**
+     * Fast path: primitive kernel, no per-element allocation.
+     * Input is taken either from intIn or from floatIn (the one that is not null);
+     * output is written either to intOut or to floatOut starting from the given offset.
+     */
+    private static void mapBlock(Op op, LambdaVariable var, int[] intIn, double[] floatIn, int[] intOut, double[] floatOut, int offset, int cnt) {
+        if (op.getReturnType() == Op.ReturnType.INT) {
+            OpI opI = (OpI) op;
+            if (intIn != null && intOut != null) {
+                for (int i = 0; i < cnt; i++) {
+                    var.intValue = intIn[i];
+                    intOut[offset + i] = opI.eval();
+                }
+            } else if (intIn != null) {
+                for (int i = 0; i < cnt; i++) {
+                    var.intValue = intIn[i];
+                    floatOut[offset + i] = opI.eval();
+                }
+            } else {
+                for (int i = 0; i < cnt; i++) {
+                    var.floatValue = floatIn[i];
+                    floatOut[offset + i] = opI.eval();
+                }
+            }
+        } else {
+            OpF opF = (OpF) op;
+            if (intIn != null) {
+                for (int i = 0; i < cnt; i++) {
+                    var.intValue = intIn[i];
+                    floatOut[offset + i] = opF.eval();
+                }
+            } else {
+                for (int i = 0; i < cnt; i++) {
+                    var.floatValue = floatIn[i];
+                    floatOut[offset + i] = opF.eval();
+                }
+            }
+        }
+    }
+
+    /** Slow path: AST walker */
+    private boolean mapBlockSlow(Expr transformation, LambdaVariable var, int[] intIn, double[] floatIn, int[] intOut, double[] floatOut, int offset, int cnt) {
+        final LambdaVariable[] frame = { var };
+        for (int i = 0; i < cnt; i++) {
+            checkCancelled();
+            if (intIn != null) {
+                var.intValue = intIn[i];
+            } else {
+                var.floatValue = floatIn[i];
+            }
+            Value v = evaluate(transformation, frame);
+            Type type = v.getType();
+            switch (type) {                    
+                case INT:
+                    if (intOut != null) {
+                        intOut[offset + i] = v.getInt();
+                    } else {
+                        floatOut[offset + i] = v.getInt();
+                    }
+                    break;
+                case FLOAT:
+                    if (floatOut == null) {
+                        error(transformation, "unexpected type: " + type);
+                        return false;
+                    }
+                    floatOut[offset + i] = v.getFloat();
+                    break;
+                case ERRONEOUS:
+                    return false;
+                case SEQ_INT:
+                case SEQ_FLOAT:
+                case STRING:
+                default:
+                    error(transformation, "unexpected type: " + type);
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Runs the compiled kernel if any, otherwise the prepared op.
+     * If the kernel fails (see Kernel), the block is re-evaluated by op that reports the error position.
+     */
+    private static void reduceBlock(Kernel kernel, Op op, LambdaVariable prev, LambdaVariable curr, int[] intIn, double[] floatIn, int cnt) {
+        if (kernel != null) {
+            try {
+                if (prev.getType() == Type.FLOAT) {
+                    prev.floatValue = kernel.reduce(prev.floatValue, intIn, floatIn, cnt);
+                } else {
+                    prev.intValue = kernel.reduce(prev.intValue, intIn, floatIn, cnt);
+                }
+                return;
+            } catch (ArithmeticException ex) {
+                // fall through; the accumulator is not changed by the failed kernel
+            }
+        }
+        reduceBlock(op, prev, curr, intIn, floatIn, cnt);
+    }
+
+    /** 
+     * Fast path: primitive kernel and accumulator, no per-element allocation.
+     * The block is taken either from intIn or from floatIn (the one that is not null)
+     */
+    private static void reduceBlock(Op op, LambdaVariable prev, LambdaVariable curr, int[] intIn, double[] floatIn, int cnt) {
+        if (prev.getType() == Type.INT) {
+            OpI opI = (OpI) op;
+            for (int i = 0; i < cnt; i++) {
+                curr.intValue = intIn[i];
+                prev.intValue = opI.eval();
+            }
+        } else if (op.getReturnType() == Op.ReturnType.INT) {
+            OpI opI = (OpI) op;
+            if (intIn != null) {
+                for (int i = 0; i < cnt; i++) {
+                    curr.intValue = intIn[i];
+                    prev.floatValue = opI.eval();
+                }
+            } else {
+                for (int i = 0; i < cnt; i++) {
+                    curr.floatValue = floatIn[i];
+                    prev.floatValue = opI.eval();
+                }
+            }
+        } else {
+            OpF opF = (OpF) op;
+            if (intIn != null) {
+                for (int i = 0; i < cnt; i++) {
+                    curr.intValue = intIn[i];
+                    prev.floatValue = opF.eval();
+                }
+            } else {
+                for (int i = 0; i < cnt; i++) {
+                    curr.floatValue = floatIn[i];
+                    prev.floatValue = opF.eval();
+                }
+            }
+        }
+    }
+
+    /** Slow path: AST walker */
+    private boolean reduceBlockSlow(Expr transformation, LambdaVariable prev, LambdaVariable curr, int[] intIn, double[] floatIn, int cnt) {
+        final boolean isFloat = prev.getType() == Type.FLOAT;
+        final LambdaVariable[] frame = { prev, curr };
+        for (int i = 0; i < cnt; i++) {
+            checkCancelled();
+            if (intIn != null) {
+                curr.intValue = intIn[i];
+            } else {
+                curr.floatValue = floatIn[i];
+            }
+            Value v = evaluate(transformation, frame);
+            switch (v.getType()) {
+                case INT:
+                    if (isFloat) {
+                        prev.floatValue = v.getInt();
+                    } else {
+                        prev.intValue = v.getInt();
+                    }
+                    break;
+                case FLOAT:
+                    if (!isFloat) {
+                        error(transformation, "unexpected type: " + v.getType());
+                        return false;
+                    }
+                    prev.floatValue = v.getFloat();
+                    break;
+                case ERRONEOUS:
+                    // upon error, don't waiste time in further calculations
+                    return false;
+                default:
+                    error(transformation, "unexpected type: " + v.getType());
+                    return false;
+            }
         }
+        return true;
     }
 
-    private Value evaluateReduceImpl(Object array, final int from, final int to, Value defValue, DeclStatement prevDecl, DeclStatement currDecl, Expr transformation) {
-        assert isArithmetic(defValue);
-        // input arrays and its size
-        assert (array instanceof int[] || array instanceof double[]);
-        // NB: as to input arrays, we always ise intIn if (array instanceof int[]), otherwise float.
-        int[] intIn;
-        double[] floatIn;
-        if (array instanceof int[]) {
-            intIn = (int[]) array;
-            floatIn = null;
-        } else {
-            floatIn = (double[]) array;
-            intIn = null;
+    /**
+     * Runs slicer over [0, size) and returns its result.
+     * If parallel is false or the operation gets only one thread (see degreeOfParallelism),
+     * runs it in the current thread as a single slice.
+     * Tasks do not get less than minGrain elements (see minGrain).
+     * Otherwise runs a fork/join task that recursively splits the range (see SliceTask)
+     * and combines results of adjacent slices in order (left, right).
+     * Can be called from within a parallel task: nested tasks are run in the same pool,
+     * and joining threads execute queued tasks instead of just waiting.
+     * @return combined result or null in the case of an exception
+     */
+    private <T> T runSlices(long size, boolean parallel, long minGrain, Slicer<T> slicer, Combiner<T> combiner) {
+        final int dop = (parallel && threadCount > 1) ? degreeOfParallelism(size, minGrain) : 1;
+        if (dop == 1) {
+            return slicer.run(0, size);
         }
-        if (defValue.getType() == Type.INT) {
-            if (array instanceof double[] || transformation.getType() == Type.FLOAT) {
-                defValue = Value.create((double) defValue.getInt());
-            }
+        final long grain = Math.max(minGrain, size / ((long) dop * SPLITS_PER_THREAD));
+        return invoke(new SliceTask<>(0, size, grain, slicer, combiner));
+    }
+
+    /**
+     * Runs slicer over leaves of a fixed tree (see TreeTask) and combines results pairwise.
+     * Unlike runSlices, the result does not depend on the number of threads
+     * (and on whether it is run in parallel at all): only on the size.
+     * @return combined result or null in the case of an exception
+     */
+    private <T> T runTree(long size, boolean parallel, long minGrain, Slicer<T> slicer, Combiner<T> combiner) {
+        final int dop = (parallel && threadCount > 1) ? degreeOfParallelism(size, minGrain) : 1;
+        if (dop == 1) {
+            return TreeTask.computeInPlace(0, size, slicer, combiner);
         }
-        // smart variables:
-        Value[] accumulator = new Value[] { defValue }; // to be able to use mutable index in anonimous class
-        Variable prevVar = new Variable(prevDecl) {
-            @Override
-            public Value getValue() {
-                return accumulator[0];
+        // leaves are never split
+        final long grain = Math.max(Math.max(minGrain, REDUCE_LEAF), size / ((long) dop * SPLITS_PER_THREAD));
+        return invoke(new TreeTask<>(0, size, grain, slicer, combiner));
+    }
+
+    private <T> T invoke(ForkJoinTask<T> task) {
+        ForkJoinPool p = getPool();
+        try {
+            return (ForkJoinTask.getPool() == p) ? task.invoke() : p.invoke(task);
+        } catch (EvaluationException | CancelledException ex) {
+            throw ex; // reported by the statement or by execute
+        } catch (RuntimeException ex) {
+            error(ex.getLocalizedMessage());
+            ex.printStackTrace();
+            return null;
+        }
+    }
+
+    private interface Slicer<T> {
+        T run(long from, long to);
+    }
+
+    private interface Combiner<T> {
+        T combine(T left, T right);
+    }
+
+    /**
+     * Recursively halves [from, to) until it is not larger than grain;
+     * stops splitting earlier if the pool already has enough queued tasks.
+     * The right half is forked (can be stolen by an idle thread), the left one is computed in place.
+     */
+    private static final class SliceTask<T> extends RecursiveTask<T> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long from;
+        private final long to;
+        private final long grain;
+        private final Slicer<T> slicer;
+        private final Combiner<T> combiner;
+        /** see DEFERRED */
+        private final List<Diagnostic> deferred = DEFERRED.get();
+
+        public SliceTask(long from, long to, long grain, Slicer<T> slicer, Combiner<T> combiner) {
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+            this.slicer = slicer;
+            this.combiner = combiner;
+        }
+
+        @Override
+        protected T compute() {
+            final List<Diagnostic> outer = DEFERRED.get();
+            DEFERRED.set(deferred);
+            try {
+                final long size = to - from;
+                if (size <= grain || (size <= grain * SPLITS_PER_THREAD && getSurplusQueuedTaskCount() > SURPLUS_THRESHOLD)) {
+                    return slicer.run(from, to);
+                }
+                final long middle = from + size / 2;
+                SliceTask<T> right = new SliceTask<>(middle, to, grain, slicer, combiner);
+                right.fork();
+                T leftResult = new SliceTask<>(from, middle, grain, slicer, combiner).compute();
+                T rightResult = right.join();
+                return combiner.combine(leftResult, rightResult);
+            } finally {
+                DEFERRED.set(outer);
             }
-        };
-        int[] idx = new int[1]; // to be able to use mutable index in anonimous class
+        }
+    }
 
-        Value smartValue = new Value() {
-            @Override
-            public Type getType() {
-                return (intIn != null) ? Type.INT : Type.FLOAT;
+    /**
+     * Splits [from, to) into leaves of REDUCE_LEAF elements;
+     * each node is split at the leaf boundary closest to the middle.
+     * Subtrees larger than grain are forked, smaller ones are computed in place;
+     * either way, the same tree is combined in the same order.
+     */
+    private static final class TreeTask<T> extends RecursiveTask<T> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long from;
+        private final long to;
+        private final long grain;
+        private final Slicer<T> slicer;
+        private final Combiner<T> combiner;
+        /** see DEFERRED */
+        private final List<Diagnostic> deferred = DEFERRED.get();
+
+        public TreeTask(long from, long to, long grain, Slicer<T> slicer, Combiner<T> combiner) {
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+            this.slicer = slicer;
+            this.combiner = combiner;
+        }
+
+        @Override
+        protected T compute() {
+            final List<Diagnostic> outer = DEFERRED.get();
+            DEFERRED.set(deferred);
+            try {
+                if (to - from <= grain) {
+                    return computeInPlace(from, to, slicer, combiner);
+                }
+                final long middle = middle(from, to);
+                TreeTask<T> right = new TreeTask<>(middle, to, grain, slicer, combiner);
+                right.fork();
+                T leftResult = new TreeTask<>(from, middle, grain, slicer, combiner).compute();
+                T rightResult = right.join();
+                return combiner.combine(leftResult, rightResult);
+            } finally {
+                DEFERRED.set(outer);
             }
-            @Override
-            public int getInt() {
-                return intIn[idx[0]];
+        }
+
+        public static <T> T computeInPlace(long from, long to, Slicer<T> slicer, Combiner<T> combiner) {
+            if (to - from <= REDUCE_LEAF) {
+                return slicer.run(from, to);
             }
-            @Override
-            public double getFloat() {
-                return floatIn[idx[0]];
+            final long middle = middle(from, to);
+            T leftResult = computeInPlace(from, middle, slicer, combiner);
+            T rightResult = computeInPlace(middle, to, slicer, combiner);
+            return combiner.combine(leftResult, rightResult);
+        }
+
+        private static long middle(long from, long to) {
+            final long leaves = (to - from + REDUCE_LEAF - 1) / REDUCE_LEAF;
+            return from + (leaves / 2) * REDUCE_LEAF;
+        }
+    }
+
+    /**
+     * Runs an operation in worker JVMs (see RemoteWorkers).
+     * The range is split like the fixed tree (see TreeTask) into subtrees of about size / (workers * SPLITS_PER_THREAD) elements,
+     * which are all sent at once; results are combined in the order TreeTask combines them, so they are the same as local ones.
+     * A subtree that a worker failed to calculate (say, the worker died) is calculated locally by slicer.
+     * @param remote creates a request for a subtree
+     * @return combined result or null in the case of an error
+     */
+    private <T> T runRemote(RemoteWorkers workers, long size, Slicer<RemoteWorkers.Call<T>> remote, Slicer<T> slicer, Combiner<T> combiner) {
+        final long grain = Math.max(REDUCE_LEAF, size / ((long) Math.max(1, workers.size()) * SPLITS_PER_THREAD));
+        final List<CompletableFuture<T>> results = new ArrayList<>();
+        submitRemote(workers, 0, size, grain, remote, results);
+        if (TRACE) {
+            System.err.printf("operation on %d elements: %d slice(s) sent to %d worker(s)%n", size, results.size(), workers.size());
+        }
+        try {
+            return combineRemote(0, size, grain, results.iterator(), slicer, combiner);
+        } catch (CancelledException ex) {
+            // queued slices are dropped; those that are in progress are finished by workers, but nobody waits for them
+            for (CompletableFuture<T> result : results) {
+                result.cancel(false);
             }
-        };
-        Variable currVar = new Variable(currDecl) {
-            @Override
-            public Value getValue() {
-                return smartValue;
+            throw ex;
+        }
+    }
+
+    private <T> void submitRemote(RemoteWorkers workers, long from, long to, long grain, Slicer<RemoteWorkers.Call<T>> remote, List<CompletableFuture<T>> results) {
+        if (to - from <= grain) {
+            final RemoteWorkers.Call<T> call = remote.run(from, to);
+            // slices that are still queued are not sent once the run is cancelled
+            results.add(workers.submit((in, out) -> isCancelled() ? null : call.call(in, out)));
+        } else {
+            final long middle = TreeTask.middle(from, to);
+            submitRemote(workers, from, middle, grain, remote, results);
+            submitRemote(workers, middle, to, grain, remote, results);
+        }
+    }
+
+    private <T> T combineRemote(long from, long to, long grain, Iterator<CompletableFuture<T>> results, Slicer<T> slicer, Combiner<T> combiner) {
+        if (to - from <= grain) {
+            final T result = awaitRemote(results.next());
+            if (result != null) {
+                return result;
             }
-        };
-        pushSymtab();
-        getSymtab().put(prevVar);
-        getSymtab().put(currVar);
-        try {
-            Producer<Value> valueProducer = prepareExpressionIfPossible(transformation, prevVar, currVar);
-            for (idx[0] = from; idx[0] < to; idx[0]++) {
-//                if (Thread.currentThread().isInterrupted()) {
-//                    return Value.ERROR;
-//                }
-                accumulator[0] = valueProducer.produce();
-                if (accumulator[0].getType() == Type.ERRONEOUS) {
-                    // upon error, don't waiste time in further calculations
-                    return Value.ERROR;
-                }
+            if (TRACE) {
+                System.err.printf("slice [%d, %d) failed in a worker, calculating it locally%n", from, to);
             }
-            return accumulator[0];
-        } finally {
-            popSymtab();
+            return TreeTask.computeInPlace(from, to, slicer, combiner);
         }
+        final long middle = TreeTask.middle(from, to);
+        T leftResult = combineRemote(from, middle, grain, results, slicer, combiner);
+        T rightResult = combineRemote(middle, to, grain, results, slicer, combiner);
+        return combiner.combine(leftResult, rightResult);
     }
 
     /**
-     * Wait all tasks in the array;
-     * if output parameter out is specified, fills it with tasks return values;
-     * whether the task succeeds is determined by testSuccess predicate.
-     * @return true if all tasks succeeded
+     * Waits for the result of a slice, checking for cancellation every REMOTE_POLL_MILLIS;
+     * workers do not know about cancellation, so a slice in progress is not waited for.
+     * @return the result or null if the worker failed to calculate it
+     * @throws CancelledException if the run is cancelled or is over its time budget
      */
-    private <T> boolean waitTasks(Future<T>[] tasks, T[] out, Predicate<T> testSuccess) {
-        boolean failed = false;
-        try {
-            for (int i = 0; i < tasks.length; i++) {
-                T value = tasks[i].get();
-                if (testSuccess.test(value)) {
-                    if(out != null) {
-                        out[i] = value;
-                    }
-                } else {
-                    failed = true;
-                }
+    private <T> T awaitRemote(CompletableFuture<T> result) {
+        while (true) {
+            checkCancelled();
+            try {
+                return result.get(REMOTE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException ex) {
+                // check again
+            } catch (ExecutionException ex) {
+                return null;
+            } catch (InterruptedException ex) {
+                // the thread that runs the script is interrupted: the same as cancel
+                Thread.currentThread().interrupt();
+                cancel();
             }
-        } catch (InterruptedException ex) {
-            failed = true;
-            Thread.currentThread().interrupt();
-        } catch (ExecutionException ex) {
-            failed = true;
-            error(ex.getLocalizedMessage());
-            ex.printStackTrace();
         }
-        if (failed) {
-            for (Future<T> task : tasks) {
-                task.cancel(true);
-            }
+    }
+
+    private static final long REMOTE_POLL_MILLIS = 100;
+
+    /**
+     * @param cost estimated cost of an element (see CostModel); it is not used unless useCostModel
+     * @return the sequence in the form it is sent to workers
+     *  or null if the operation should not (or can not) be run in worker JVMs, see RemoteWorkers
+     */
+    private RemoteSeq remoteSeq(Value seq, double cost) {
+        if (workerCount == 0 || (useCostModel() && seq.getSize() * CostModel.nanos(cost) < CostModel.REMOTE_NANOS)) {
+            return null;
+        }
+        final RemoteSeq remote = RemoteSeq.create(seq);
+        return (remote != null && RemoteWorkers.get(workerCount) != null) ? remote : null;
+    }
+
+    /** Stores a slice calculated by a worker JVM (see RemoteProtocol.materialize) into the target */
+    private static Boolean storeRemoteSlice(Value slice, Value target, long from, long to) {
+        if (slice == null) {
+            return null;
         }
-        return !failed;
+        // the slice starts from the index 0, while the target is filled from the index from
+        final SeqCursor cursor = slice.openCursor();
+        return materializeImpl(new SeqCursor() {
+            @Override
+            public boolean fill(long pos, int[] buf, int offset, int count) {
+                return cursor.fill(pos - from, buf, offset, count);
+            }
+            @Override
+            public boolean fill(long pos, double[] buf, int offset, int count) {
+                return cursor.fill(pos - from, buf, offset, count);
+            }
+        }, target, from, to);
+    }
+
+    /** @return lazy map over the sequence; used by worker JVMs to rebuild the sequence they are sent, see RemoteProtocol */
+    Value createMap(Value seq, DeclStatement var, Expr transformation) {
+        final boolean isFloat = (seq.getType() == Type.SEQ_FLOAT) || transformation.getType() == Type.FLOAT;
+        return new MapValue(seq, var, transformation, isFloat ? Type.SEQ_FLOAT : Type.SEQ_INT);
+    }
+
+    /**
+     * Worker side of a remote reduce (see RemoteProtocol): reduces a slice the same way a local slice is reduced.
+     * @return the partial or null if it can not be calculated
+     */
+    AffinePartial reduceSlice(Value seq, boolean isFloat, boolean compensated, ReduceExpr reduce) {
+        return TreeTask.computeInPlace(0, seq.getSize(),
+                (from, to) -> reduceAffineImpl(seq, from, to, isFloat, compensated, reduce.getPrev(), reduce.getCurr(), reduce.getTransformation()),
+                (left, right) -> (left == null || right == null) ? null : left.then(right));
+    }
+
+    /**
+     * Worker side of a remote materialize (see RemoteProtocol).
+     * @return an array value of the elements or null if they can not be calculated
+     */
+    Value materializeSlice(Value seq) {
+        final long size = seq.getSize();
+        final Value array = (seq.getType() == Type.SEQ_FLOAT) ? Value.create(new double[(int) size]) : Value.create(new int[(int) size]);
+        return materializeImpl(seq.openCursor(), array, 0, size) ? array : null;
     }
 
-    private Value evaluateSequence(SeqExpr expr) {
+    private Value evaluateSequence(SeqExpr expr, LambdaVariable[] frame) {
         Expr firstExpr = expr.getFirst();
         Expr lastExpr = expr.getLast();
         if (firstExpr != null && lastExpr != null) {
-            Value firstValue = evaluate(firstExpr);
+            Value firstValue = evaluate(firstExpr, frame);
             if (firstValue.getType() == Type.INT) {
-                Value lastValue = evaluate(lastExpr);
+                Value lastValue = evaluate(lastExpr, frame);
                 if (lastValue.getType() == Type.INT) {
-                    int first = firstValue.getInt();
-                    int last = lastValue.getInt();
-                    int[] data = new int[last - first + 1];
-                    for (int i = 0; i < data.length; i++) {
-                        data[i] = first + i;
-                    }
-                    return Value.create(data);
+                    // NB: no array here, elements are calculated by those who read the range
+                    return new RangeValue(firstValue.getInt(), lastValue.getInt(), 1);
                 }
             }
         }
         return Value.ERROR;
     }
 
-    private Value evaluateOperation(BinaryOpExpr expr) {
+    private Value evaluateOperation(BinaryOpExpr expr, LambdaVariable[] frame) {
         Expr leftExpr = expr.getLeft();
         if (leftExpr != null) {
             Expr rightExpr = expr.getRight();
             if (rightExpr != null) {
-                Value leftValue = evaluate(leftExpr);
+                Value leftValue = evaluate(leftExpr, frame);
                 if (isArithmetic(leftValue)) {
-                    Value rightValue = evaluate(rightExpr);
+                    Value rightValue = evaluate(rightExpr, frame);
                     if (isArithmetic(rightValue)) {
                         return evaluateOperation(expr, leftValue, rightValue);
                     }
@@ -593,6 +2239,10 @@ public class EvaluatorImpl {
     private boolean isArithmetic(Value value) {
         return value.getType() == Type.INT || value.getType() == Type.FLOAT;
     }
+
+    private static boolean isSequence(Value value) {
+        return value.getType() == Type.SEQ_INT || value.getType() == Type.SEQ_FLOAT;
+    }
         
     private Value evaluateOperation(BinaryOpExpr expr, Value leftValue, Value rightValue) {
         final BinaryOpExpr.OpKind op = expr.getOpKind();
@@ -640,407 +2290,1019 @@ public class EvaluatorImpl {
         }
     }
 
-    private double evaluatePower(double left, int right) {
-        return Math.pow(left, right);
-    }
+    private double evaluatePower(double left, int right) {
+        return Math.pow(left, right);
+    }
+
+    private int evaluatePower(int left, int right) {
+        return Kernel.pow(left, right); // the same as prepared operations (see PowII) give
+    }
+
+    /** except for ^ (power) ! */
+    private int evaluateOperation(BinaryOpExpr.OpKind op, int left, int right) {
+        switch (op) {            
+            case ADD:
+                return left + right;
+            case SUB:
+                return left - right;
+            case DIV:
+                return left / right;
+            case MUL:
+                return left * right;
+            case POW:
+            default:
+                throw new IllegalArgumentException(""+op);
+        }
+    }
+
+    /** except for ^ (power) ! */
+    private double evaluateOperation(BinaryOpExpr.OpKind op, double left, double right) {
+        switch (op) {            
+            case ADD:
+                return left + right;
+            case SUB:
+                return left - right;
+            case DIV:
+                return left / right;
+            case MUL:
+                return left * right;
+            case POW:
+            default:
+                throw new IllegalArgumentException(""+op);
+        }
+    }
+
+    private void error(CharSequence message) {
+        report(Diagnostic.error(0, 0, message));
+    }
+
+    private void error(ASTNode node, CharSequence message) {
+        report(Diagnostic.error(node.getLine(), node.getColumn(), message));
+    }
+
+    /**
+     * Diagnostics of the statement or variable that is being evaluated by the current thread (null if none);
+     * they are kept until the statement prints its result, so that they come in source order (see evaluateOut).
+     * Fork/join tasks take it over from the thread that creates them.
+     */
+    private static final ThreadLocal<List<Diagnostic>> DEFERRED = new ThreadLocal<>();
+
+    /** Errors can come from several threads; listeners are not supposed to be thread safe */
+    private void report(Diagnostic diagnostic) {
+        final List<Diagnostic> deferred = DEFERRED.get();
+        if (deferred != null) {
+            synchronized (deferred) {
+                deferred.add(diagnostic);
+            }
+            return;
+        }
+        synchronized (diagnosticListeners) {
+            for (DiagnosticListener dl : diagnosticListeners) {
+                dl.report(diagnostic);
+            }
+        }
+    }
+    
+
+    /**
+     * Arithmetic progression: first, first + stride, ... while not beyond last.
+     * Takes O(1) memory whatever the size is; elements are calculated on the fly.
+     */
+    static final class RangeValue extends Value {
+
+        private final int first;
+        final int stride;
+        private final long size;
+
+        public RangeValue(int first, int last, int stride) {
+            this(first, stride, Math.floorDiv((long) last - (long) first, (long) stride) + 1);
+        }
+
+        /** A range of the given number of elements; unlike the above, it can end past the int limits (see getIntAt) */
+        public RangeValue(int first, int stride, long size) {
+            assert stride != 0;
+            this.first = first;
+            this.stride = stride;
+            this.size = (size > 0) ? size : 0;
+        }
+
+        @Override
+        public Type getType() {
+            return Type.SEQ_INT;
+        }
+
+        @Override
+        public long getSize() {
+            return size;
+        }
+
+        @Override
+        public boolean isMaterialized() {
+            return true;
+        }
+
+        public int getIntAt(long index) {
+            return (int) (first + index * stride);
+        }
+
+        @Override
+        public SeqCursor openCursor() {
+            return new SeqCursor() {
+                @Override
+                public boolean fill(long from, int[] buf, int offset, int count) {
+                    int value = getIntAt(from);
+                    for (int i = 0; i < count; i++) {
+                        buf[offset + i] = value;
+                        value += stride;
+                    }
+                    return true;
+                }
+            };
+        }
+    }
+
+    /**
+     * Result of map: a lazy sequence.
+     * Elements are calculated block by block by whoever reads the sequence,
+     * so a chain like map(map({...}, ...), ...) consumed by reduce
+     * runs as a single pass without allocating intermediate arrays.
+     */
+    final class MapValue extends Value {
+
+        final Value source;
+        final DeclStatement varDecl;
+        final Expr transformation;
+        private final Type type;
+        /** Transformation prepared by MapOp; it is given to the first cursor only, see claimPrepared */
+        private final AtomicReference<PreparedMap> prepared;
+        /** The same transformation; it is only analyzed, not evaluated (see shapeOf), so it can be shared */
+        private final PreparedMap template;
+        /** See getElementCost; negative until calculated */
+        private volatile double cost = -1;
+
+        public MapValue(Value source, DeclStatement varDecl, Expr transformation, Type type) {
+            this(source, varDecl, transformation, type, null);
+        }
+
+        public MapValue(Value source, DeclStatement varDecl, Expr transformation, Type type, PreparedMap prepared) {
+            assert isSequence(source);
+            assert type == Type.SEQ_INT || type == Type.SEQ_FLOAT;
+            this.source = source;
+            this.varDecl = varDecl;
+            this.transformation = transformation;
+            this.type = type;
+            this.prepared = (prepared == null) ? null : new AtomicReference<>(prepared);
+            this.template = prepared;
+        }
+
+        /**
+         * Lambda variable of the prepared transformation is not thread safe,
+         * so it can be used by a single cursor; other cursors (say, parallel slices) prepare their own.
+         * NB: MapOp reuses the same prepared transformation each time it is evaluated;
+         * this is safe since the previous map value is always consumed by then.
+         */
+        public PreparedMap claimPrepared() {
+            return (prepared == null) ? null : prepared.getAndSet(null);
+        }
+
+        @Override
+        public Type getType() {
+            return type;
+        }
+
+        @Override
+        public long getSize() {
+            return source.getSize();
+        }
+
+        @Override
+        public SeqCursor openCursor() {
+            return new MapCursor(this);
+        }
+
+        @Override
+        public double getElementCost() {
+            if (cost < 0) {
+                final double opCost;
+                if (template != null) {
+                    opCost = template.getCost();
+                } else if (SUPPRESS_PREPARED_EXPRESSIONS) {
+                    opCost = CostModel.WALKER_COST;
+                } else {
+                    // no kernel is compiled: the transformation is only analyzed
+                    opCost = CostModel.opCost(prepareLambda(transformation,
+                            new LambdaVariable(varDecl, (source.getType() == Type.SEQ_INT) ? Type.INT : Type.FLOAT)), kernelCompiler != null);
+                }
+                cost = source.getElementCost() + opCost;
+            }
+            return cost;
+        }
+    }
+
+    /** Each cursor has its own source cursor, buffers and prepared transformation */
+    private final class MapCursor extends SeqCursor {
+
+        private final MapValue map;
+        private final SeqCursor sourceCursor;
+        private final LambdaVariable var;
+        private final Op op;
+        private final Kernel kernel;
+        private int[] intIn;
+        private double[] floatIn;
+
+        public MapCursor(MapValue map) {
+            this.map = map;
+            this.sourceCursor = map.source.openCursor();
+            PreparedMap prepared = map.claimPrepared();
+            if (prepared == null) {
+                prepared = prepareMap(map.source.getType(), map.varDecl, map.transformation, map.type);
+            }
+            this.var = prepared.var;
+            this.op = prepared.op;
+            this.kernel = prepared.kernel;
+        }
+
+        @Override
+        public boolean fill(long from, int[] buf, int offset, int count) {
+            assert map.type == Type.SEQ_INT;
+            return fillImpl(from, buf, null, offset, count);
+        }
+
+        @Override
+        public boolean fill(long from, double[] buf, int offset, int count) {
+            assert map.type == Type.SEQ_FLOAT;
+            return fillImpl(from, null, buf, offset, count);
+        }
+
+        private boolean fillImpl(long from, int[] intOut, double[] floatOut, int offset, int count) {
+            while (count > 0) {
+                checkCancelled();
+                final int cnt = Math.min(count, BLOCK_SIZE);
+                if (var.getType() == Type.INT) {
+                    if (intIn == null || intIn.length < cnt) {
+                        intIn = new int[cnt];
+                    }
+                    if (!sourceCursor.fill(from, intIn, 0, cnt)) {
+                        return false;
+                    }
+                } else {
+                    if (floatIn == null || floatIn.length < cnt) {
+                        floatIn = new double[cnt];
+                    }
+                    if (!sourceCursor.fill(from, floatIn, 0, cnt)) {
+                        return false;
+                    }
+                }
+                if (op != null) {
+                    mapBlock(kernel, op, var, intIn, floatIn, intOut, floatOut, offset, cnt);
+                } else if (!mapBlockSlow(map.transformation, var, intIn, floatIn, intOut, floatOut, offset, cnt)) {
+                    return false;
+                }
+                from += cnt;
+                offset += cnt;
+                count -= cnt;
+            }
+            return true;
+        }
+    }
+    
+    /**
+     * A global variable; evaluated lazily and exactly once, even if several threads need it at the same time.
+     */
+    private class Variable {
+
+        private final CharSequence name;
+        private final DeclStatement decl;
+        /** 
+         * null until somebody starts evaluating the variable; the thread that manages to set the future
+         * evaluates it, the others wait for the future to complete
+         */
+        private final AtomicReference<CompletableFuture<Value>> value = new AtomicReference<>();
+        /** number of references to the variable; see countUses */
+        private final int useCount;
+        /** Errors of the initializer that are not reported yet; see reportError */
+        private volatile List<Diagnostic> errors;
 
-    private int evaluatePower(int left, int right) {
-        if (left == -1) {
-            return (right%2 == 0) ? +1 : -1;
+        protected Variable(DeclStatement declaration) {
+            this(declaration, 0);
         }
-        return (int) Math.pow(left, right);
-    }
 
-    /** except for ^ (power) ! */
-    private int evaluateOperation(BinaryOpExpr.OpKind op, int left, int right) {
-        switch (op) {            
-            case ADD:
-                return left + right;
-            case SUB:
-                return left - right;
-            case DIV:
-                return left / right;
-            case MUL:
-                return left * right;
-            case POW:
-            default:
-                throw new IllegalArgumentException(""+op);
+        protected Variable(DeclStatement declaration, int useCount) {
+            this.name = declaration.getDelarationName().toString();
+            this.decl = declaration;
+            this.useCount = useCount;
         }
-    }
 
-    /** except for ^ (power) ! */
-    private double evaluateOperation(BinaryOpExpr.OpKind op, double left, double right) {
-        switch (op) {            
-            case ADD:
-                return left + right;
-            case SUB:
-                return left - right;
-            case DIV:
-                return left / right;
-            case MUL:
-                return left * right;
-            case POW:
-            default:
-                throw new IllegalArgumentException(""+op);
+        public CharSequence getName() {
+            return name;
         }
-    }
 
-    private void error(CharSequence message) {
-        for (DiagnosticListener dl : diagnosticListeners) {
-            dl.report(Diagnostic.error(0, 0, message));
+        public DeclStatement getDeclaration() {
+            return decl;
         }
-    }
 
-    private void error(ASTNode node, CharSequence message) {
-        for (DiagnosticListener dl : diagnosticListeners) {
-            dl.report(Diagnostic.error(node.getLine(), node.getColumn(), message));
+        /** 
+         * NB: a thread that waits in a fork/join pool is compensated by the pool (see CompletableFuture.join),
+         * so waiting for a variable that is being evaluated in parallel does not starve the pool
+         */
+        public Value getValue() {
+            CompletableFuture<Value> future = value.get();
+            while (future == null) {
+                final CompletableFuture<Value> own = new CompletableFuture<>();
+                if (value.compareAndSet(null, own)) {
+                    final Value result;
+                    try {
+                        result = evaluateValue();
+                    } catch (RuntimeException | Error ex) {
+                        own.completeExceptionally(ex);
+                        throw ex;
+                    }
+                    own.complete(result);
+                    valueCache.admit(this, own, result);
+                    return result;
+                }
+                // somebody else has started, unless the value has been released in between
+                future = value.get();
+            }
+            final Value result = future.getNow(null);
+            if (result != null) {
+                valueCache.touch(this);
+                return result;
+            }
+            try {
+                return future.join();
+            } catch (CompletionException ex) {
+                if (ex.getCause() instanceof CancelledException) {
+                    throw (CancelledException) ex.getCause();
+                }
+                throw ex;
+            }
         }
-    }
-    
-    private void pushSymtab() {
-        Symtab s =  new Symtab();
-        Deque<Symtab> deque = lambdaSymtabs.get();
-        if (deque == null) {
-            deque = new LinkedList<>();
-            lambdaSymtabs.set(deque);
+
+        /** @return true if somebody has already started evaluating the variable */
+        public boolean isStarted() {
+            return value.get() != null;
+        }
+
+        /** Forgets the value (see computeLiveness); should it be needed again, it will be recalculated */
+        public void release() {
+            value.set(null);
+            valueCache.remove(this);
+        }
+
+        /** Forgets the value unless it has been changed since it was cached; see ValueCache */
+        private void evict(CompletableFuture<Value> cached) {
+            value.compareAndSet(cached, null);
+        }
+
+        private Value evaluateValue() {
+            final List<Diagnostic> diagnostics = new ArrayList<>();
+            final List<Diagnostic> outer = DEFERRED.get();
+            DEFERRED.set(diagnostics);
+            try {
+                Value result = evaluatePlan(decl.getInitializer());
+                if (useCount > 1) {
+                    // otherwise a lazy sequence would be calculated once per use
+                    result = materialize(result, decl.getInitializer());
+                }
+                return result;
+            } catch (EvaluationException ex) {
+                report(ex);
+                return Value.ERROR;
+            } finally {
+                DEFERRED.set(outer);
+                errors = diagnostics.isEmpty() ? null : diagnostics;
+            }
         }
-        deque.push(new Symtab());
-    }
-    
-    private void popSymtab() {
-        Deque<Symtab> deque = lambdaSymtabs.get();
-        assert deque != null;
-        deque.pop();
-    }
 
-    private Symtab getSymtab() {
-        Deque<Symtab> deque = lambdaSymtabs.get();
-        if (deque != null) {
-            Symtab s = deque.peek();
-            if (s != null) {
-                return s;
+        /**
+         * Reports the errors of the initializer, if any; called by the first statement that depends on the variable
+         * when it prints its result, so that errors come in the same order as in sequential execution.
+         * If the variable is still being evaluated (say, by a task that nobody needs any more), waits for it.
+         */
+        public void reportError() {
+            final CompletableFuture<Value> future = value.get();
+            if (future != null) {
+                try {
+                    future.join();
+                } catch (CompletionException | CancellationException ex) {
+                    // reported by the one who needed the value
+                }
+            }
+            final List<Diagnostic> diagnostics = errors;
+            if (diagnostics != null) {
+                errors = null;
+                report(diagnostics);
             }
         }
-        return globalSymtab;
     }
 
-    private class Symtab  {
+    /**
+     * Bounds the memory held by materialized values of global variables (jbs.cache.bytes).
+     * When the total size exceeds the budget, the least recently used values are evicted;
+     * declarations are pure, so an evicted variable is just recalculated when it is needed again.
+     * NB: the cache only stops holding an evicted value; it is not freed while somebody still uses it.
+     */
+    private static final class ValueCache {
+
+        private static final class Entry {
+            public final CompletableFuture<Value> future;
+            public final long bytes;
+            public Entry(CompletableFuture<Value> future, long bytes) {
+                this.future = future;
+                this.bytes = bytes;
+            }
+        }
+
+        private final long budget;
+        private long used;
+        /** in access order: eldest is the least recently used */
+        private final LinkedHashMap<Variable, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
 
-        private ConcurrentHashMap<CharSequence, Variable> data = new ConcurrentHashMap<>();
+        public ValueCache(long budget) {
+            this.budget = budget;
+        }
 
-        public boolean contains(DeclStatement stmt) {
-            return contains(stmt.getDelarationName());
+        /** Registers a just calculated value and evicts others if the budget is exceeded */
+        public synchronized void admit(Variable var, CompletableFuture<Value> future, Value value) {
+            final long bytes = sizeOf(value);
+            if (bytes == 0) {
+                return;
+            }
+            final Entry old = entries.put(var, new Entry(future, bytes));
+            used += bytes - ((old == null) ? 0 : old.bytes);
+            for (Iterator<Map.Entry<Variable, Entry>> it = entries.entrySet().iterator(); used > budget && it.hasNext();) {
+                final Map.Entry<Variable, Entry> e = it.next();
+                if (e.getKey() != var) {
+                    it.remove();
+                    used -= e.getValue().bytes;
+                    e.getKey().evict(e.getValue().future);
+                }
+            }
         }
 
-        public boolean contains(CharSequence name) {
-            return data.containsKey(name);
+        public synchronized void touch(Variable var) {
+            entries.get(var);
         }
-        
-        public Variable get(CharSequence name) {
-            return data.get(name);
+
+        public synchronized void remove(Variable var) {
+            final Entry old = entries.remove(var);
+            if (old != null) {
+                used -= old.bytes;
+            }
         }
 
-        public void put(Variable var) {
-            data.put(var.getName(), var);
+        /** @return number of bytes held by a stored sequence; ranges, lazy sequences and scalars are not counted */
+        private static long sizeOf(Value value) {
+            if (value instanceof Value.IntArrayValue || value instanceof Value.FloatArrayValue || value instanceof SegmentedValue) {
+                return value.getSize() * elementSize(value.getType() == Type.SEQ_FLOAT);
+            } else if (value instanceof PackedValue) {
+                return ((PackedValue) value).getBytes();
+            }
+            return 0;
         }
     }
-    
+
     /**
-     * From performance perspective, it's questional whether its worth to have this class.
-     * But from the code readability and reliability we'd better use it than bare Object.
-     * So if profiler ever shows that this leads to a bottleneck, we'll (probably) drop it and use bare Object as value.
+     * A lambda parameter (map element, reduce accumulator or reduce element).
+     * Holds the current value as a primitive, so that neither the kernel loops
+     * nor prepared operations (ArgI, ArgF) allocate a Value per element.
+     * Value view is created only once and is used by the AST walker.
      */
-    private static abstract class Value {
-        
-        private static final Value ERROR = new ErrorValue();
+    final class LambdaVariable extends Variable {
 
-        public static Value create(int value) {
-            return new IntValue(value);
-        }
+        private final Type type;
+        private int intValue;
+        private double floatValue;
+        private final Value view = new Value() {
+            @Override
+            public Type getType() {
+                return type;
+            }
+            @Override
+            public int getInt() {
+                return intValue;
+            }
+            @Override
+            public double getFloat() {
+                return floatValue;
+            }
+        };
 
-        public static Value create(int[] value) {
-            return new IntArrayValue(value);
+        public LambdaVariable(DeclStatement declaration, Type type) {
+            super(declaration);
+            assert type == Type.INT || type == Type.FLOAT;
+            this.type = type;
         }
 
-        public static Value create(double value) {
-            return new FloatValue(value);
+        public Type getType() {
+            return type;
         }
 
-        public static Value create(double[] value) {
-            return new FloatArrayValue(value);
+        @Override
+        public Value getValue() {
+            return view;
         }
+    }
 
-        public abstract Type getType();
-        
-        public int getInt() {
-            throw new  UnsupportedOperationException();
-        }
-        
-        public double getFloat() {
-            throw new  UnsupportedOperationException();
-        }
-        
-        public int[] getIntArray() {
-            throw new  UnsupportedOperationException();
+    /**
+     * Creates a tree of operations (Op descendants);
+     * ops work much faster than traversing AST.
+     *
+     * Used both for top level expressions (see evaluatePlan) and for map and reduce transformations;
+     * nested sequences, maps and reduces are lowered as well (SeqOp, MapOp, ReduceOpI, ReduceOpF).
+     * All variables except those declared in lambda are replaced with their values as consts
+     *
+     * @param expr
+     * @param frame parameters of the lambda the expression belongs to (see resolve);
+     * all other variables will be replaced by their values at the moment of prepareExpr call
+     * @return
+     */
+    private Op prepareExpr(Expr expr, LambdaVariable... frame) {
+        if (expr == null) {
+            return null;
         }
-        
-        public double[] getFloatArray() {
-            throw new  UnsupportedOperationException();
+        ASTNode.NodeKind nodeKind = expr.getNodeKind();
+        switch (nodeKind) {
+            case PAREN:
+                return prepareExpr(((ParenExpr) expr).getFirstChild(), frame);
+            case OP:
+                BinaryOpExpr opExpr = (BinaryOpExpr) expr;
+                final BinaryOpExpr.OpKind opKind = opExpr.getOpKind();
+                final Op left = prepareExpr(opExpr.getLeft(), frame);
+                final Op right = prepareExpr(opExpr.getRight(), frame);
+                if (left == null || right == null || left.getReturnType() == Op.ReturnType.SEQ || right.getReturnType() == Op.ReturnType.SEQ) {
+                    return null;
+                }
+                return binaryOp(opKind, left, right, opExpr);
+            case ID:
+                // lambda parameters become arguments, other variables are final and are replaced with their values
+                final Variable var = resolve((IdExpr) expr, frame);
+                if (var == null) {
+                    return null; // should have been already reported by parser
+                } else if (var instanceof LambdaVariable) {
+                    LambdaVariable lambdaVar = (LambdaVariable) var;
+                    return (lambdaVar.getType() == Type.INT) ? new ArgI(lambdaVar) : new ArgF(lambdaVar);
+                }
+                final Value value = var.getValue();
+                if (value == null) {
+                    error(var.getDeclaration(), "variable " + var.getName() + " has null value");
+                    return null;
+                } else if (value.getType() == Type.INT) {
+                    return new ConstI(value.getInt());
+                } else if (value.getType() == Type.FLOAT) {
+                    return new ConstF(value.getFloat());
+                } else if (isSequence(value)) {
+                    return new ConstS(value);
+                } else {
+                    return null;
+                }
+            case INT:
+                return new ConstI(((IntLiteral) expr).getValue());
+            case FLOAT:
+                return new ConstF(((FloatLiteral) expr).getValue());
+            case SEQ:
+                {
+                    final Op first = prepareExpr(((SeqExpr) expr).getFirst(), frame);
+                    final Op last = prepareExpr(((SeqExpr) expr).getLast(), frame);
+                    if (first == null || last == null || first.getReturnType() != Op.ReturnType.INT || last.getReturnType() != Op.ReturnType.INT) {
+                        return null;
+                    }
+                    return new SeqOp((OpI) first, (OpI) last);
+                }
+            case MAP:
+                return prepareMap((MapExpr) expr, frame);
+            case REDUCE:
+                return prepareReduce((ReduceExpr) expr, frame);
+            case DECL:
+            case OUT:
+            case PRINT:
+            case STRING:
+            default:
+                return null;
         }
     }
 
-    private static final class ErrorValue extends Value{
-        @Override
-        public Type getType() {
-            return Type.ERRONEOUS;
+    /** Same as prepareExpr, but returns null unless the result is int or float */
+    private Op prepareScalar(Expr expr, LambdaVariable... frame) {
+        Op op = prepareExpr(expr, frame);
+        return (op == null || op.getReturnType() == Op.ReturnType.SEQ) ? null : op;
+    }
+
+    /**
+     * Prepares a lambda body: the same as prepareScalar, plus hoisting of the whole body if it is invariant
+     * and elimination of common subexpressions (see share).
+     * @param vars lambda parameters in the order of declaration, i.e. indexed by their slots
+     */
+    private Op prepareLambda(Expr transformation, LambdaVariable... vars) {
+        return share(hoist(prepareScalar(transformation, vars)), vars);
+    }
+
+    private Op prepareMap(MapExpr expr, LambdaVariable... frame) {
+        final Op source = prepareExpr(expr.getSequence(), frame);
+        if (source == null || source.getReturnType() != Op.ReturnType.SEQ || expr.getVar() == null || expr.getTransformation() == null) {
+            return null;
         }
+        final Type sourceType = ((OpS) source).getType();
+        // the same rule as in evaluateMap
+        final boolean isFloat = (sourceType == Type.SEQ_FLOAT) || expr.getTransformation().getType() == Type.FLOAT;
+        final Type type = isFloat ? Type.SEQ_FLOAT : Type.SEQ_INT;
+        final PreparedMap prepared = prepareMap(sourceType, expr.getVar(), expr.getTransformation(), type);
+        return (prepared.op == null) ? null : new MapOp((OpS) source, expr, type, prepared);
     }
-    
-    private static final class IntValue extends Value {
-        private final int value;
-        public IntValue(int value) {
-            this.value = value;
+
+    private Op prepareReduce(ReduceExpr expr, LambdaVariable... frame) {
+        final Op def = prepareScalar(expr.getDefValue(), frame);
+        final Op seq = prepareExpr(expr.getSequence(), frame);
+        final Expr transformation = expr.getTransformation();
+        if (def == null || seq == null || seq.getReturnType() != Op.ReturnType.SEQ
+                || expr.getPrev() == null || expr.getCurr() == null || transformation == null) {
+            return null;
         }
-        @Override
-        public int getInt() {
-            return value;
+        final Type seqType = ((OpS) seq).getType();
+        // the same rule as in isFloatReduce
+        final boolean isFloat = def.getReturnType() == Op.ReturnType.FLOAT || seqType == Type.SEQ_FLOAT || transformation.getType() == Type.FLOAT;
+        final LambdaVariable prev = new LambdaVariable(expr.getPrev(), isFloat ? Type.FLOAT : Type.INT);
+        final LambdaVariable curr = new LambdaVariable(expr.getCurr(), (seqType == Type.SEQ_INT) ? Type.INT : Type.FLOAT);
+        final Op op = prepareLambda(transformation, prev, curr);
+        if (op == null || (!isFloat && op.getReturnType() != Op.ReturnType.INT)) {
+            return null;
         }
-        @Override
-        public Type getType() {
-            return Type.INT;
-        }        
+        final Kernel kernel = (kernelCompiler != null) ? kernelCompiler.compileReduce(op, prev, curr) : null;
+        ReducePlan plan = new ReducePlan(expr, (OpS) seq, def, prev, curr, op, kernel);
+        return isFloat ? new ReduceOpF(plan) : new ReduceOpI(plan);
     }
 
-    private static final class IntArrayValue extends Value {
-        private final int[] value;
-        public IntArrayValue(int[] value) {
-            this.value = value;
+    /**
+     * Prepares map transformation for the given source type
+     * @return prepared map; its op is null if the transformation can not be prepared
+     */
+    private PreparedMap prepareMap(Type sourceType, DeclStatement varDecl, Expr transformation, Type type) {
+        final LambdaVariable var = new LambdaVariable(varDecl, (sourceType == Type.SEQ_INT) ? Type.INT : Type.FLOAT);
+        Op op = null;
+        if (!SUPPRESS_PREPARED_EXPRESSIONS) {
+            op = prepareLambda(transformation, var);
+            if (op != null && type == Type.SEQ_INT && op.getReturnType() != Op.ReturnType.INT) {
+                op = null; // types do not match the output; use the slow path
+            }
         }
-        @Override
-        public int[] getIntArray() {
-            return value;
+        final Kernel kernel = (op != null && kernelCompiler != null) ? kernelCompiler.compileMap(op, var, type == Type.SEQ_FLOAT) : null;
+        return new PreparedMap(var, op, kernel);
+    }
+
+    /** Lambda parameter and prepared transformation of a map; see MapCursor */
+    private static final class PreparedMap {
+        public final LambdaVariable var;
+        public final Op op;
+        public final Kernel kernel;
+        /** See getCost; negative until calculated */
+        private volatile double cost = -1;
+        public PreparedMap(LambdaVariable var, Op op, Kernel kernel) {
+            this.var = var;
+            this.op = op;
+            this.kernel = kernel;
+        }
+        /** @return estimated cost of the transformation, see CostModel */
+        public double getCost() {
+            if (cost < 0) {
+                cost = CostModel.opCost(op, kernel != null);
+            }
+            return cost;
         }
-        @Override
-        public Type getType() {
-            return Type.SEQ_INT;
-        }        
     }
 
-    private static final class FloatValue extends Value {
-        private final double value;
-        public FloatValue(double value) {
-            this.value = value;
+    /**
+     * A reduce lowered by prepareExpr: lambda parameters and the transformation
+     * are prepared once rather than each time the reduce is evaluated
+     * (which matters when it is nested in another transformation).
+     * Not thread safe, as well as the op tree it belongs to.
+     */
+    private final class ReducePlan {
+
+        private final ReduceExpr expr;
+        private final OpS seq;
+        private final Op def;
+        private final LambdaVariable prev;
+        private final LambdaVariable curr;
+        private final Op op;
+        private final Kernel kernel;
+        private final ReduceIdiom idiom;
+        /** Estimated cost of the transformation (see CostModel); negative until calculated */
+        private double opCost = -1;
+        private int[] intIn;
+        private double[] floatIn;
+
+        public ReducePlan(ReduceExpr expr, OpS seq, Op def, LambdaVariable prev, LambdaVariable curr, Op op, Kernel kernel) {
+            this.expr = expr;
+            this.seq = seq;
+            this.def = def;
+            this.prev = prev;
+            this.curr = curr;
+            this.op = op;
+            this.kernel = kernel;
+            this.idiom = ReduceIdiom.of(op, prev, curr);
+        }
+
+        /** the transformation sees only its own parameters */
+        public boolean isInvariant() {
+            return def.isInvariant() && seq.isInvariant();
+        }
+
+        /** @return null if the result is left in prev, otherwise the result */
+        public Value run() {
+            final boolean isFloat = prev.getType() == Type.FLOAT;
+            final Value defValue = def.evalValue();
+            final Value seqValue = seq.eval();
+            final RangeShape shape = (idiom == null) ? null : shapeOf(seqValue);
+            final Value closedForm = (shape == null) ? null : idiom.apply(shape, defValue, EvaluatorImpl.this::checkCancelled);
+            if (closedForm != null) {
+                return closedForm;
+            }
+            final long size = seqValue.getSize();
+            if (opCost < 0 && useCostModel()) {
+                opCost = CostModel.opCost(op, kernel != null);
+            }
+            final double cost = useCostModel() ? seqValue.getElementCost() + opCost : 0;
+            if (isParallel(size, cost) || (isFloat && deterministicReduce && size > REDUCE_LEAF)) {
+                // parallel or fixed tree, the same as reduce that is not lowered, so that results do not depend on that
+                Value result = evaluateReduce(seqValue, defValue, expr.getPrev(), expr.getCurr(), expr.getTransformation());
+                if (result.getType() == Type.ERRONEOUS) {
+                    throw new EvaluationException(null, null); // already reported
+                }
+                return result;
+            }
+            if (isFloat) {
+                prev.floatValue = (defValue.getType() == Type.INT) ? defValue.getInt() : defValue.getFloat();
+            } else {
+                prev.intValue = defValue.getInt();
+            }
+            final boolean isIntIn = curr.getType() == Type.INT;
+            if (isIntIn && intIn == null) {
+                intIn = new int[BLOCK_SIZE];
+            } else if (!isIntIn && floatIn == null) {
+                floatIn = new double[BLOCK_SIZE];
+            }
+            final SeqCursor cursor = seqValue.openCursor();
+            for (long blockStart = 0; blockStart < size; blockStart += BLOCK_SIZE) {
+                checkCancelled();
+                final int cnt = (int) Math.min(BLOCK_SIZE, size - blockStart);
+                if (!(isIntIn ? cursor.fill(blockStart, intIn, 0, cnt) : cursor.fill(blockStart, floatIn, 0, cnt))) {
+                    throw new EvaluationException(null, null); // already reported
+                }
+                reduceBlock(kernel, op, prev, curr, intIn, floatIn, cnt);
+            }
+            return null;
         }
-        @Override
-        public double getFloat() {
-            return value;
+    }
+
+    /**
+     * Thrown by prepared operations when evaluation fails (zero division, etc);
+     * reported by the statement being executed, see report.
+     * Null message means that the error has been already reported.
+     */
+    private static final class EvaluationException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        private final ASTNode node;
+        public EvaluationException(ASTNode node, String message) {
+            super(message, null, false, false);
+            this.node = node;
         }
-        @Override
-        public Type getType() {
-            return Type.FLOAT;
-        }        
     }
-    
-    private static final class FloatArrayValue extends Value {
-        private final double[] value;
-        public FloatArrayValue(double[] value) {
-            this.value = value;
+
+    /** Unwinds evaluation of all statements and slices when the run is cancelled; see checkCancelled */
+    private static final class CancelledException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        public CancelledException() {
+            super(null, null, false, false);
         }
-        @Override
-        public double[] getFloatArray() {
-            return value;
+    }
+
+    private void report(EvaluationException ex) {
+        if (ex.getMessage() != null) {
+            if (ex.node != null) {
+                error(ex.node, ex.getMessage());
+            } else {
+                error(ex.getMessage());
+            }
         }
-        @Override
-        public Type getType() {
-            return Type.SEQ_FLOAT;
-        }        
     }
-    
-    private class Variable {
 
-        private final CharSequence name;
-        private final DeclStatement decl;
-        private Value value;
-        private boolean cached;
+    /** Creates an operation node for the given operation kind and operand types */
+    private static Op binaryOp(BinaryOpExpr.OpKind opKind, Op left, Op right) {
+        return binaryOp(opKind, left, right, null);
+    }
 
-        protected Variable(DeclStatement declaration) {
-            this.name = declaration.getDelarationName().toString();
-            this.decl = declaration;
+    /**
+     * Creates an operation node for the given operation kind and operand types.
+     * Since op trees are built bottom-up, this is also where they are optimized:
+     * constants are folded (see fold), powers are replaced with cheaper operations (see reducePower)
+     * and operands that do not depend on lambda parameters are hoisted (see hoist).
+     * @param node expression to report evaluation errors (zero division, negative power) for
+     */
+    private static Op binaryOp(BinaryOpExpr.OpKind opKind, Op left, Op right, ASTNode node) {
+        if (left.isInvariant() != right.isInvariant()) {
+            left = hoist(left);
+            right = hoist(right);
         }
+        final Op op = (opKind == BinaryOpExpr.OpKind.POW) ? reducePower(left, right, node) : null;
+        return fold((op == null) ? createOp(opKind, left, right, node) : op);
+    }
 
-        public CharSequence getName() {
-            return name;
+    /**
+     * Wraps an invariant operation (one that does not depend on lambda parameters,
+     * say, a nested reduce over a global sequence) so that it is evaluated once
+     * rather than for each element; constants and variant operations are returned as is.
+     */
+    private static Op hoist(Op op) {
+        if (op == null || !op.isInvariant() || op instanceof ConstI || op instanceof ConstF
+                || op instanceof HoistedI || op instanceof HoistedF) {
+            return op;
+        }
+        switch (op.getReturnType()) {
+            case INT:
+                return new HoistedI((OpI) op);
+            case FLOAT:
+                return new HoistedF((OpF) op);
+            default:
+                return op; // sequences are lazy anyway
+        }
+    }
+
+    /**
+     * Evaluates an operation on constants.
+     * Errors (zero division, negative power) are left for run time,
+     * since the expression might never be evaluated (say, it maps an empty sequence).
+     */
+    private static Op fold(Op op) {
+        if (op.getOpKind() == null || !isConstant(op.getLeft()) || !isConstant(op.getRight())) {
+            return op;
         }
+        try {
+            return (op.getReturnType() == Op.ReturnType.INT) ? new ConstI(((OpI) op).eval()) : new ConstF(((OpF) op).eval());
+        } catch (EvaluationException ex) {
+            return op;
+        }
+    }
 
-        public DeclStatement getDeclaration() {
-            return decl;
+    private static boolean isConstant(Op op) {
+        return op instanceof ConstI || op instanceof ConstF;
+    }
+
+    /**
+     * (-1)^n becomes a parity check, x^2 and x^3 become multiplications
+     * (for float x, only x^2: x * x * x is rounded differently from Math.pow);
+     * x is duplicated only if it is cheap to evaluate (a lambda parameter or a hoisted operation).
+     * Other int powers are calculated by squaring, see Kernel.pow.
+     * @return operation that is cheaper than left ^ right or null
+     */
+    private static Op reducePower(Op left, Op right, ASTNode node) {
+        if (right.getReturnType() != Op.ReturnType.INT) {
+            if (right instanceof ConstF && ((ConstF) right).value == 2.0 && left.getReturnType() == Op.ReturnType.FLOAT && isCheap(left)) {
+                return new MulFF((OpF) left, (OpF) left);
+            }
+            return null;
+        }
+        if (left.getReturnType() == Op.ReturnType.INT && left instanceof ConstI && ((ConstI) left).value == -1) {
+            return new SignPowII((OpI) right, node);
         }
-
-        public Value getValue() {
-            assert Thread.currentThread() == execurorThread;
-            if (!cached) {
-                value = evaluate(decl.getInitializer());
-                cached = true;
+        final int power = (right instanceof ConstI) ? ((ConstI) right).value : -1;
+        if (isCheap(left)) {
+            if (left.getReturnType() == Op.ReturnType.INT) {
+                if (power == 2) {
+                    return new MulII((OpI) left, (OpI) left);
+                } else if (power == 3) {
+                    return new MulII(new MulII((OpI) left, (OpI) left), (OpI) left);
+                }
+            } else if (power == 2) {
+                return new MulFF((OpF) left, (OpF) left);
             }
-            return value;
         }
+        return null;
     }
 
-    private interface Producer<T> {
-        T produce();
+    private static boolean isCheap(Op op) {
+        return op instanceof ArgI || op instanceof ArgF || op instanceof HoistedI || op instanceof HoistedF
+                || op instanceof SharedI || op instanceof SharedF;
     }
 
     /**
-     * Creates a tree of operations (Op descendants);
-     * ops work much faster than traversing AST.
-     *
-     * Now it's used int map and reduce only, all variables except those declared in lambda
-     * are replaced with their values as consts
-     *
-     * @param expr
-     * @param nonFinalVars variables that are not final.
-     * All variables that are not in the list will be replaced by their values
-     * at the moment of prepareExpr call
-     * @return
+     * Common subexpression elimination: identical subexpressions of a lambda body
+     * (say, 2.0*i+1 in (2.0*i+1) * (2.0*i+1) / (2.0*i+1 + 3)) become a single SharedI or SharedF node
+     * that is evaluated once per element; compiled kernels keep its value in a local variable.
+     * Subexpressions are identified by their text (see KernelCompiler.describe),
+     * so only arithmetic on constants and lambda parameters is shared.
      */
-    private Op prepareExpr(Expr expr, Variable... nonFinalVars) {
-        if (expr == null) {
+    private static Op share(Op op, LambdaVariable... vars) {
+        if (op == null) {
             return null;
         }
-        ASTNode.NodeKind nodeKind = expr.getNodeKind();
-        switch (nodeKind) {
-            case PAREN:
-                return prepareExpr(((ParenExpr) expr).getFirstChild(), nonFinalVars);
-            case OP:
-                BinaryOpExpr opExpr = (BinaryOpExpr) expr;
-                final BinaryOpExpr.OpKind opKind = opExpr.getOpKind();
-                final Op left = prepareExpr(opExpr.getLeft(), nonFinalVars);
-                final Op right = prepareExpr(opExpr.getRight(), nonFinalVars);
-                if (left == null || right == null) {
-                    return null;
+        final Map<String, Integer> counts = new HashMap<>();
+        countSubexpressions(op, counts, vars);
+        for (Integer count : counts.values()) {
+            if (count > 1) {
+                return share(op, counts, new HashMap<String, Op>(), vars);
+            }
+        }
+        return op;
+    }
+
+    private static void countSubexpressions(Op op, Map<String, Integer> counts, LambdaVariable... vars) {
+        if (op.getOpKind() == null) {
+            return;
+        }
+        final String text = KernelCompiler.describe(op, vars);
+        if (text == null || counts.merge(text, 1, Integer::sum) == 1) {
+            // operands of a repeated subexpression are counted only once
+            countSubexpressions(op.getLeft(), counts, vars);
+            countSubexpressions(op.getRight(), counts, vars);
+        }
+    }
+
+    private static Op share(Op op, Map<String, Integer> counts, Map<String, Op> shared, LambdaVariable... vars) {
+        if (op.getOpKind() == null) {
+            return op;
+        }
+        final String text = KernelCompiler.describe(op, vars);
+        final boolean repeated = text != null && counts.get(text) > 1;
+        if (repeated && shared.containsKey(text)) {
+            return shared.get(text);
+        }
+        final Op left = share(op.getLeft(), counts, shared, vars);
+        final Op right = share(op.getRight(), counts, shared, vars);
+        Op result = (left == op.getLeft() && right == op.getRight()) ? op : binaryOp(op.getOpKind(), left, right, op.getNode());
+        if (repeated) {
+            result = (result.getReturnType() == Op.ReturnType.INT) ? new SharedI((OpI) result, vars) : new SharedF((OpF) result, vars);
+            shared.put(text, result);
+        }
+        return result;
+    }
+
+    private static Op createOp(BinaryOpExpr.OpKind opKind, Op left, Op right, ASTNode node) {
+        final Op.ReturnType lrt = left.getReturnType();
+        final Op.ReturnType rrt = right.getReturnType();
+        switch (opKind) {
+            case ADD:
+                if (lrt == Op.ReturnType.INT && rrt == Op.ReturnType.INT) {
+                    return new AddII((OpI)left, (OpI)right);
+                } else if (lrt == Op.ReturnType.FLOAT && rrt == Op.ReturnType.FLOAT) {
+                    return new AddFF((OpF)left, (OpF)right);
+                } else if (lrt == Op.ReturnType.FLOAT && rrt == Op.ReturnType.INT) {
+                    return new AddFI((OpF)left, (OpI)right);
+                } else if (lrt == Op.ReturnType.INT && rrt == Op.ReturnType.FLOAT) {
+                    return new AddIF((OpI)left, (OpF)right);
+                } else {
+                    throw new IllegalStateException();
                 }
-                final Op.ReturnType lrt = left.getReturnType();
-                final Op.ReturnType rrt = right.getReturnType();
-                switch (opKind) {
-                    case ADD:
-                        if (lrt == Op.ReturnType.INT && rrt == Op.ReturnType.INT) {
-                            return new AddII((OpI)left, (OpI)right);
-                        } else if (lrt == Op.ReturnType.FLOAT && rrt == Op.ReturnType.FLOAT) {
-                            return new AddFF((OpF)left, (OpF)right);
-                        } else if (lrt == Op.ReturnType.FLOAT && rrt == Op.ReturnType.INT) {
-                            return new AddFI((OpF)left, (OpI)right);
-                        } else if (lrt == Op.ReturnType.INT && rrt == Op.ReturnType.FLOAT) {
-                            return new AddIF((OpI)left, (OpF)right);
-                        } else {
-                            throw new IllegalStateException();
-                        }
-                    case SUB:
-                        if (lrt == Op.ReturnType.INT && rrt == Op.ReturnType.INT) {
-                            return new SubII((OpI)left, (OpI)right);
-                        } else if (lrt == Op.ReturnType.FLOAT && rrt == Op.ReturnType.FLOAT) {
-                            return new SubFF((OpF)left, (OpF)right);
-                        } else if (lrt == Op.ReturnType.FLOAT && rrt == Op.ReturnType.INT) {
-                            return new SubFI((OpF)left, (OpI)right);
-                        } else if (lrt == Op.ReturnType.INT && rrt == Op.ReturnType.FLOAT) {
-                            return new SubIF((OpI)left, (OpF)right);
-                        } else {
-                            throw new IllegalStateException();
-                        }
-                    case MUL:
-                        if (lrt == Op.ReturnType.INT && rrt == Op.ReturnType.INT) {
-                            return new MulII((OpI)left, (OpI)right);
-                        } else if (lrt == Op.ReturnType.FLOAT && rrt == Op.ReturnType.FLOAT) {
-                            return new MulFF((OpF)left, (OpF)right);
-                        } else if (lrt == Op.ReturnType.FLOAT && rrt == Op.ReturnType.INT) {
-                            return new MulFI((OpF)left, (OpI)right);
-                        } else if (lrt == Op.ReturnType.INT && rrt == Op.ReturnType.FLOAT) {
-                            return new MulIF((OpI)left, (OpF)right);
-                        } else {
-                            throw new IllegalStateException();
-                        }
-                    case DIV:
-                        if (lrt == Op.ReturnType.INT && rrt == Op.ReturnType.INT) {
-                            return new DivII((OpI)left, (OpI)right);
-                        } else if (lrt == Op.ReturnType.FLOAT && rrt == Op.ReturnType.FLOAT) {
-                            return new DivFF((OpF)left, (OpF)right);
-                        } else if (lrt == Op.ReturnType.FLOAT && rrt == Op.ReturnType.INT) {
-                            return new DivFI((OpF)left, (OpI)right);
-                        } else if (lrt == Op.ReturnType.INT && rrt == Op.ReturnType.FLOAT) {
-                            return new DivIF((OpI)left, (OpF)right);
-                        } else {
-                            throw new IllegalStateException();
-                        }
-                    case POW:
-                        if (lrt == Op.ReturnType.INT && rrt == Op.ReturnType.INT) {
-                            return new PowII((OpI)left, (OpI)right);
-                        } else if (lrt == Op.ReturnType.FLOAT && rrt == Op.ReturnType.FLOAT) {
-                            return new PowFF((OpF)left, (OpF)right);
-                        } else if (lrt == Op.ReturnType.FLOAT && rrt == Op.ReturnType.INT) {
-                            return new PowFI((OpF)left, (OpI)right);
-                        } else if (lrt == Op.ReturnType.INT && rrt == Op.ReturnType.FLOAT) {
-                            return new PowIF((OpI)left, (OpF)right);
-                        } else {
-                            throw new IllegalStateException();
-                        }
-                    default:
-                        throw new AssertionError(opKind.name());
+            case SUB:
+                if (lrt == Op.ReturnType.INT && rrt == Op.ReturnType.INT) {
+                    return new SubII((OpI)left, (OpI)right);
+                } else if (lrt == Op.ReturnType.FLOAT && rrt == Op.ReturnType.FLOAT) {
+                    return new SubFF((OpF)left, (OpF)right);
+                } else if (lrt == Op.ReturnType.FLOAT && rrt == Op.ReturnType.INT) {
+                    return new SubFI((OpF)left, (OpI)right);
+                } else if (lrt == Op.ReturnType.INT && rrt == Op.ReturnType.FLOAT) {
+                    return new SubIF((OpI)left, (OpF)right);
+                } else {
+                    throw new IllegalStateException();
                 }
-            case ID:
-                IdExpr idExpr = (IdExpr) expr;
-                CharSequence name = idExpr.getName();
-                Variable var = null;
-                // For final variables create a constant node,
-                // for non final variables - VarI or VarF node
-                boolean isConst = true;
-                for (Variable v : nonFinalVars) {
-                    if (contentEquals(name, v.getName())) {
-                        var = v;
-                        isConst = false;
-                        break;
-                    }
+            case MUL:
+                if (lrt == Op.ReturnType.INT && rrt == Op.ReturnType.INT) {
+                    return new MulII((OpI)left, (OpI)right);
+                } else if (lrt == Op.ReturnType.FLOAT && rrt == Op.ReturnType.FLOAT) {
+                    return new MulFF((OpF)left, (OpF)right);
+                } else if (lrt == Op.ReturnType.FLOAT && rrt == Op.ReturnType.INT) {
+                    return new MulFI((OpF)left, (OpI)right);
+                } else if (lrt == Op.ReturnType.INT && rrt == Op.ReturnType.FLOAT) {
+                    return new MulIF((OpI)left, (OpF)right);
+                } else {
+                    throw new IllegalStateException();
                 }
-                if (isConst) {
-                    assert var == null; // take from symtab
-                    var = getSymtab().get(name);
-                    if (var == null) {
-                        return null; // should have been already reported by parser
-                    }
-                    Value value = var.getValue();
-                    if (value == null) {
-                        error(var.getDeclaration(), "variable " + var.getValue() + " has null value");
-                        return null;
-                    } else if (value.getType() == Type.INT) {
-                        return new ConstI(value.getInt());
-                    } else if (value.getType() == Type.FLOAT) {
-                        return new ConstF(value.getFloat());
-                    } else {
-                        return null;
-                    }
+            case DIV:
+                if (lrt == Op.ReturnType.INT && rrt == Op.ReturnType.INT) {
+                    return new DivII((OpI)left, (OpI)right, node);
+                } else if (lrt == Op.ReturnType.FLOAT && rrt == Op.ReturnType.FLOAT) {
+                    return new DivFF((OpF)left, (OpF)right);
+                } else if (lrt == Op.ReturnType.FLOAT && rrt == Op.ReturnType.INT) {
+                    return new DivFI((OpF)left, (OpI)right, node);
+                } else if (lrt == Op.ReturnType.INT && rrt == Op.ReturnType.FLOAT) {
+                    return new DivIF((OpI)left, (OpF)right);
                 } else {
-                    assert var != null; // passed as parameter
-                    Value value = var.getValue();
-                    Type type = (value != null) ? value.getType() : idExpr.getType();
-                    if (type == Type.INT) {
-                        return new VarI(var);
-                    } else if (type == Type.FLOAT) {
-                        return new VarF(var);
-                    } else {
-                        return null;
-                    }
+                    throw new IllegalStateException();
+                }
+            case POW:
+                if (lrt == Op.ReturnType.INT && rrt == Op.ReturnType.INT) {
+                    return new PowII((OpI)left, (OpI)right, node);
+                } else if (lrt == Op.ReturnType.FLOAT && rrt == Op.ReturnType.FLOAT) {
+                    return new PowFF((OpF)left, (OpF)right);
+                } else if (lrt == Op.ReturnType.FLOAT && rrt == Op.ReturnType.INT) {
+                    return new PowFI((OpF)left, (OpI)right, node);
+                } else if (lrt == Op.ReturnType.INT && rrt == Op.ReturnType.FLOAT) {
+                    return new PowIF((OpI)left, (OpF)right);
+                } else {
+                    throw new IllegalStateException();
                 }
-            case INT:
-                return new ConstI(((IntLiteral) expr).getValue());
-            case FLOAT:
-                return new ConstF(((FloatLiteral) expr).getValue());
-            case DECL:
-            case OUT:
-            case PRINT:
-            case SEQ:
-            case MAP:
-            case REDUCE:
-            case STRING:
             default:
-                return null;
+                throw new AssertionError(opKind.name());
         }
     }
 
@@ -1066,20 +3328,45 @@ public class EvaluatorImpl {
      * that work faster that traversing and evaluating AST tree.
      */
 
-    private static abstract class Op {
+    static abstract class Op {
         public enum ReturnType {
             INT,
-            FLOAT
+            FLOAT,
+            SEQ
         }
         /** Use instead of instanceof checks */
         public abstract ReturnType getReturnType();
+        /** Evaluates the operation and wraps the result into a value */
+        public abstract Value evalValue();
+        /** @return operation kind for binary operations, null for leaves */
+        public BinaryOpExpr.OpKind getOpKind() {
+            return null;
+        }
+        public Op getLeft() {
+            return null;
+        }
+        public Op getRight() {
+            return null;
+        }
+        /** @return expression to report evaluation errors for, see binaryOp */
+        public ASTNode getNode() {
+            return null;
+        }
+        /** @return true if the result does not depend on variables (including lambda parameters) */
+        public boolean isInvariant() {
+            return false;
+        }
     }
 
-    private static abstract class OpI extends Op {
+    static abstract class OpI extends Op {
         @Override
         public ReturnType getReturnType() {
             return Op.ReturnType.INT;
         }
+        @Override
+        public Value evalValue() {
+            return Value.create(eval());
+        }
         abstract public int eval();
     }
 
@@ -1088,11 +3375,126 @@ public class EvaluatorImpl {
         public ReturnType getReturnType() {
             return Op.ReturnType.FLOAT;
         }
+        @Override
+        public Value evalValue() {
+            return Value.create(eval());
+        }
         abstract public double eval();
     }
 
-    private static final class ConstI extends OpI {
-        private final int value;
+    /** An operation that produces a sequence; never returns an erroneous value (throws EvaluationException instead) */
+    private static abstract class OpS extends Op {
+        private final Type type;
+        public OpS(Type type) {
+            assert type == Type.SEQ_INT || type == Type.SEQ_FLOAT;
+            this.type = type;
+        }
+        @Override
+        public ReturnType getReturnType() {
+            return Op.ReturnType.SEQ;
+        }
+        /** @return either SEQ_INT or SEQ_FLOAT */
+        public Type getType() {
+            return type;
+        }
+        @Override
+        public Value evalValue() {
+            return eval();
+        }
+        abstract public Value eval();
+    }
+
+    /** A sequence that is already calculated (say, a global variable) */
+    private static final class ConstS extends OpS {
+        private final Value value;
+        public ConstS(Value value) {
+            super(value.getType());
+            this.value = value;
+        }
+        @Override
+        public Value eval() {
+            return value;
+        }
+        @Override
+        public boolean isInvariant() {
+            return true;
+        }
+    }
+
+    /** {first, last} */
+    private static final class SeqOp extends OpS {
+        private final OpI first;
+        private final OpI last;
+        public SeqOp(OpI first, OpI last) {
+            super(Type.SEQ_INT);
+            this.first = first;
+            this.last = last;
+        }
+        @Override
+        public Value eval() {
+            return new RangeValue(first.eval(), last.eval(), 1);
+        }
+        @Override
+        public boolean isInvariant() {
+            return first.isInvariant() && last.isInvariant();
+        }
+    }
+
+    /** map(source, var -> transformation); the result is lazy, see MapValue */
+    private final class MapOp extends OpS {
+        private final OpS source;
+        private final MapExpr expr;
+        private final PreparedMap prepared;
+        public MapOp(OpS source, MapExpr expr, Type type, PreparedMap prepared) {
+            super(type);
+            this.source = source;
+            this.expr = expr;
+            this.prepared = prepared;
+        }
+        @Override
+        public Value eval() {
+            return new MapValue(source.eval(), expr.getVar(), expr.getTransformation(), getType(), prepared);
+        }
+        @Override
+        public boolean isInvariant() {
+            return source.isInvariant(); // the transformation sees only its own parameter
+        }
+    }
+
+    static final class ReduceOpI extends OpI {
+        private final ReducePlan plan;
+        public ReduceOpI(ReducePlan plan) {
+            this.plan = plan;
+        }
+        @Override
+        public int eval() {
+            Value result = plan.run();
+            return (result == null) ? plan.prev.intValue : result.getInt();
+        }
+        @Override
+        public boolean isInvariant() {
+            return plan.isInvariant();
+        }
+    }
+
+    static final class ReduceOpF extends OpF {
+        private final ReducePlan plan;
+        public ReduceOpF(ReducePlan plan) {
+            this.plan = plan;
+        }
+        @Override
+        public double eval() {
+            Value result = plan.run();
+            return (result == null) ? plan.prev.floatValue : result.getFloat();
+        }
+        @Override
+        public boolean isInvariant() {
+            return plan.isInvariant();
+        }
+    }
+
+    static final class ConstI extends OpI {
+        final int value;
         public ConstI(int value) {
             this.value = value;
         }
@@ -1100,10 +3502,14 @@ public class EvaluatorImpl {
         public int eval() {
             return value;
         }
+        @Override
+        public boolean isInvariant() {
+            return true;
+        }
     }
 
-    private static final class ConstF extends OpF {
-        private final double value;
+    static final class ConstF extends OpF {
+        final double value;
         public ConstF(double value) {
             this.value = value;
         }
@@ -1111,47 +3517,123 @@ public class EvaluatorImpl {
         public double eval() {
             return value;
         }
+        @Override
+        public boolean isInvariant() {
+            return true;
+        }
     }
 
     private static abstract class OpII extends OpI {
+        private final BinaryOpExpr.OpKind kind;
         protected final OpI left;
         protected final OpI right;
-        public OpII(OpI left, OpI right) {
+        public OpII(BinaryOpExpr.OpKind kind, OpI left, OpI right) {
+            this.kind = kind;
             this.left = left;
             this.right = right;
         }
+        @Override
+        public BinaryOpExpr.OpKind getOpKind() {
+            return kind;
+        }
+        @Override
+        public Op getLeft() {
+            return left;
+        }
+        @Override
+        public Op getRight() {
+            return right;
+        }
+        @Override
+        public boolean isInvariant() {
+            return left.isInvariant() && right.isInvariant();
+        }
     }
 
     private static abstract class OpFF extends OpF {
+        private final BinaryOpExpr.OpKind kind;
         protected final OpF left;
         protected final OpF right;
-        public OpFF(OpF left, OpF right) {
+        public OpFF(BinaryOpExpr.OpKind kind, OpF left, OpF right) {
+            this.kind = kind;
             this.left = left;
             this.right = right;
         }
+        @Override
+        public BinaryOpExpr.OpKind getOpKind() {
+            return kind;
+        }
+        @Override
+        public Op getLeft() {
+            return left;
+        }
+        @Override
+        public Op getRight() {
+            return right;
+        }
+        @Override
+        public boolean isInvariant() {
+            return left.isInvariant() && right.isInvariant();
+        }
     }
 
     private static abstract class OpIF extends OpF {
+        private final BinaryOpExpr.OpKind kind;
         protected final OpI left;
         protected final OpF right;
-        public OpIF(OpI left, OpF right) {
+        public OpIF(BinaryOpExpr.OpKind kind, OpI left, OpF right) {
+            this.kind = kind;
             this.left = left;
             this.right = right;
         }
+        @Override
+        public BinaryOpExpr.OpKind getOpKind() {
+            return kind;
+        }
+        @Override
+        public Op getLeft() {
+            return left;
+        }
+        @Override
+        public Op getRight() {
+            return right;
+        }
+        @Override
+        public boolean isInvariant() {
+            return left.isInvariant() && right.isInvariant();
+        }
     }
 
     private static abstract class OpFI extends OpF {
+        private final BinaryOpExpr.OpKind kind;
         protected final OpF left;
         protected final OpI right;
-        public OpFI(OpF left, OpI right) {
+        public OpFI(BinaryOpExpr.OpKind kind, OpF left, OpI right) {
+            this.kind = kind;
             this.left = left;
             this.right = right;
         }
+        @Override
+        public BinaryOpExpr.OpKind getOpKind() {
+            return kind;
+        }
+        @Override
+        public Op getLeft() {
+            return left;
+        }
+        @Override
+        public Op getRight() {
+            return right;
+        }
+        @Override
+        public boolean isInvariant() {
+            return left.isInvariant() && right.isInvariant();
+        }
     }
 
-    private static final class AddII extends OpII {
+    static final class AddII extends OpII {
         public AddII(OpI left, OpI right) {
-            super(left, right);
+            super(BinaryOpExpr.OpKind.ADD, left, right);
         }
         @Override
         public int eval() {
@@ -1161,7 +3643,7 @@ public class EvaluatorImpl {
 
     private static final class AddFF extends OpFF {
         public AddFF(OpF left, OpF right) {
-            super(left, right);
+            super(BinaryOpExpr.OpKind.ADD, left, right);
         }
         @Override
         public double eval() {
@@ -1171,7 +3653,7 @@ public class EvaluatorImpl {
 
     private static final class AddIF extends OpIF {
         public AddIF(OpI left, OpF right) {
-            super(left, right);
+            super(BinaryOpExpr.OpKind.ADD, left, right);
         }
         @Override
         public double eval() {
@@ -1181,7 +3663,7 @@ public class EvaluatorImpl {
 
     private static final class AddFI extends OpFI {
         public AddFI(OpF left, OpI right) {
-            super(left, right);
+            super(BinaryOpExpr.OpKind.ADD, left, right);
         }
         @Override
         public double eval() {
@@ -1191,7 +3673,7 @@ public class EvaluatorImpl {
 
     private static final class SubII extends OpII {
         public SubII(OpI left, OpI right) {
-            super(left, right);
+            super(BinaryOpExpr.OpKind.SUB, left, right);
         }
         @Override
         public int eval() {
@@ -1201,7 +3683,7 @@ public class EvaluatorImpl {
 
     private static final class SubFF extends OpFF {
         public SubFF(OpF left, OpF right) {
-            super(left, right);
+            super(BinaryOpExpr.OpKind.SUB, left, right);
         }
         @Override
         public double eval() {
@@ -1211,7 +3693,7 @@ public class EvaluatorImpl {
 
     private static final class SubIF extends OpIF {
         public SubIF(OpI left, OpF right) {
-            super(left, right);
+            super(BinaryOpExpr.OpKind.SUB, left, right);
         }
         @Override
         public double eval() {
@@ -1221,7 +3703,7 @@ public class EvaluatorImpl {
 
     private static final class SubFI extends OpFI {
         public SubFI(OpF left, OpI right) {
-            super(left, right);
+            super(BinaryOpExpr.OpKind.SUB, left, right);
         }
         @Override
         public double eval() {
@@ -1229,9 +3711,9 @@ public class EvaluatorImpl {
         }
     }
 
-    private static final class MulII extends OpII {
+    static final class MulII extends OpII {
         public MulII(OpI left, OpI right) {
-            super(left, right);
+            super(BinaryOpExpr.OpKind.MUL, left, right);
         }
         @Override
         public int eval() {
@@ -1241,7 +3723,7 @@ public class EvaluatorImpl {
 
     private static final class MulFF extends OpFF {
         public MulFF(OpF left, OpF right) {
-            super(left, right);
+            super(BinaryOpExpr.OpKind.MUL, left, right);
         }
         @Override
         public double eval() {
@@ -1251,7 +3733,7 @@ public class EvaluatorImpl {
 
     private static final class MulIF extends OpIF {
         public MulIF(OpI left, OpF right) {
-            super(left, right);
+            super(BinaryOpExpr.OpKind.MUL, left, right);
         }
         @Override
         public double eval() {
@@ -1261,7 +3743,7 @@ public class EvaluatorImpl {
 
     private static final class MulFI extends OpFI {
         public MulFI(OpF left, OpI right) {
-            super(left, right);
+            super(BinaryOpExpr.OpKind.MUL, left, right);
         }
         @Override
         public double eval() {
@@ -1270,18 +3752,29 @@ public class EvaluatorImpl {
     }
 
     private static final class DivII extends OpII {
-        public DivII(OpI left, OpI right) {
-            super(left, right);
+        private final ASTNode node;
+        public DivII(OpI left, OpI right, ASTNode node) {
+            super(BinaryOpExpr.OpKind.DIV, left, right);
+            this.node = node;
+        }
+        @Override
+        public ASTNode getNode() {
+            return node;
         }
         @Override
         public int eval() {
-            return left.eval() / right.eval();
+            final int l = left.eval();
+            final int r = right.eval();
+            if (r == 0) {
+                throw new EvaluationException(node, "zero division");
+            }
+            return l / r;
         }
     }
 
     private static final class DivFF extends OpFF {
         public DivFF(OpF left, OpF right) {
-            super(left, right);
+            super(BinaryOpExpr.OpKind.DIV, left, right);
         }
         @Override
         public double eval() {
@@ -1291,7 +3784,7 @@ public class EvaluatorImpl {
 
     private static final class DivIF extends OpIF {
         public DivIF(OpI left, OpF right) {
-            super(left, right);
+            super(BinaryOpExpr.OpKind.DIV, left, right);
         }
         @Override
         public double eval() {
@@ -1299,34 +3792,51 @@ public class EvaluatorImpl {
         }
     }
 
-    private static final class DivFI extends OpFI {
-        public DivFI(OpF left, OpI right) {
-            super(left, right);
+    static final class DivFI extends OpFI {
+        private final ASTNode node;
+        public DivFI(OpF left, OpI right, ASTNode node) {
+            super(BinaryOpExpr.OpKind.DIV, left, right);
+            this.node = node;
+        }
+        @Override
+        public ASTNode getNode() {
+            return node;
         }
         @Override
         public double eval() {
-            return left.eval() / (double) right.eval();
+            final double l = left.eval();
+            final int r = right.eval();
+            if (r == 0) {
+                throw new EvaluationException(node, "zero division");
+            }
+            return l / (double) r;
         }
     }
 
-    private static final class PowII extends OpII {
-        public PowII(OpI left, OpI right) {
-            super(left, right);
+    static final class PowII extends OpII {
+        private final ASTNode node;
+        public PowII(OpI left, OpI right, ASTNode node) {
+            super(BinaryOpExpr.OpKind.POW, left, right);
+            this.node = node;
+        }
+        @Override
+        public ASTNode getNode() {
+            return node;
         }
         @Override
         public int eval() {
-            int l = this.left.eval();
-            int r = this.right.eval();
-            if (l == -1) {
-                return (r % 2 == 0) ? +1 : -1;
+            final int l = left.eval();
+            final int r = right.eval();
+            if (r < 0) {
+                throw new EvaluationException(node, "only nonnegative power is supported");
             }
-            return (int) Math.pow(l, r);
+            return Kernel.pow(l, r);
         }
     }
 
     private static final class PowFF extends OpFF {
         public PowFF(OpF left, OpF right) {
-            super(left, right);
+            super(BinaryOpExpr.OpKind.POW, left, right);
         }
         @Override
         public double eval() {
@@ -1336,7 +3846,7 @@ public class EvaluatorImpl {
 
     private static final class PowIF extends OpIF {
         public PowIF(OpI left, OpF right) {
-            super(left, right);
+            super(BinaryOpExpr.OpKind.POW, left, right);
         }
         @Override
         public double eval() {
@@ -1344,47 +3854,186 @@ public class EvaluatorImpl {
         }
     }
 
-    private static final class PowFI extends OpFI {
-        public PowFI(OpF left, OpI right) {
-            super(left, right);
+    static final class PowFI extends OpFI {
+        private final ASTNode node;
+        public PowFI(OpF left, OpI right, ASTNode node) {
+            super(BinaryOpExpr.OpKind.POW, left, right);
+            this.node = node;
+        }
+        @Override
+        public ASTNode getNode() {
+            return node;
+        }
+        @Override
+        public double eval() {
+            final double l = left.eval();
+            final int r = right.eval();
+            if (r < 0) {
+                throw new EvaluationException(node, "only nonnegative power is supported");
+            }
+            return Math.pow(l, (double) r);
+        }
+    }
+
+    /** (-1)^right: selected by the parity of right, see reducePower */
+    static final class SignPowII extends OpII {
+        private final ASTNode node;
+        public SignPowII(OpI right, ASTNode node) {
+            super(BinaryOpExpr.OpKind.POW, new ConstI(-1), right);
+            this.node = node;
+        }
+        @Override
+        public ASTNode getNode() {
+            return node;
+        }
+        @Override
+        public int eval() {
+            final int r = right.eval();
+            if (r < 0) {
+                throw new EvaluationException(node, "only nonnegative power is supported");
+            }
+            return 1 - ((r & 1) << 1);
+        }
+    }
+
+    /**
+     * An invariant operation that is evaluated once, see hoist.
+     * Errors are not cached: the operation is evaluated again and fails again.
+     */
+    private static final class HoistedI extends OpI {
+        private final OpI op;
+        private boolean evaluated;
+        private int value;
+        public HoistedI(OpI op) {
+            this.op = op;
+        }
+        @Override
+        public int eval() {
+            if (!evaluated) {
+                value = op.eval();
+                evaluated = true;
+            }
+            return value;
+        }
+        @Override
+        public boolean isInvariant() {
+            return true;
+        }
+    }
+
+    /** See HoistedI */
+    private static final class HoistedF extends OpF {
+        private final OpF op;
+        private boolean evaluated;
+        private double value;
+        public HoistedF(OpF op) {
+            this.op = op;
+        }
+        @Override
+        public double eval() {
+            if (!evaluated) {
+                value = op.eval();
+                evaluated = true;
+            }
+            return value;
+        }
+        @Override
+        public boolean isInvariant() {
+            return true;
+        }
+    }
+
+    /**
+     * A common subexpression, see share.
+     * Its value is calculated once for the given values of lambda parameters.
+     */
+    static final class SharedI extends OpI {
+        final OpI op;
+        private final LambdaVariable[] vars;
+        private final long[] args;
+        private boolean evaluated;
+        private int value;
+        public SharedI(OpI op, LambdaVariable[] vars) {
+            this.op = op;
+            this.vars = vars;
+            this.args = new long[vars.length];
+        }
+        @Override
+        public int eval() {
+            if (rememberArgs(vars, args) || !evaluated) {
+                evaluated = false; // in the case op throws
+                value = op.eval();
+                evaluated = true;
+            }
+            return value;
+        }
+        @Override
+        public boolean isInvariant() {
+            return op.isInvariant();
+        }
+    }
+
+    /** See SharedI */
+    static final class SharedF extends OpF {
+        final OpF op;
+        private final LambdaVariable[] vars;
+        private final long[] args;
+        private boolean evaluated;
+        private double value;
+        public SharedF(OpF op, LambdaVariable[] vars) {
+            this.op = op;
+            this.vars = vars;
+            this.args = new long[vars.length];
         }
         @Override
         public double eval() {
-            return Math.pow(left.eval(), (double)right.eval());
+            if (rememberArgs(vars, args) || !evaluated) {
+                evaluated = false; // in the case op throws
+                value = op.eval();
+                evaluated = true;
+            }
+            return value;
+        }
+        @Override
+        public boolean isInvariant() {
+            return op.isInvariant();
         }
     }
 
-    private final class VarI extends OpI {
-        private final Variable var;
-        public VarI(Variable var) {
+    /** @return true if lambda parameters differ from the remembered ones; remembers the new ones */
+    private static boolean rememberArgs(LambdaVariable[] vars, long[] args) {
+        boolean changed = false;
+        for (int i = 0; i < vars.length; i++) {
+            final long bits = (vars[i].getType() == Type.INT) ? vars[i].intValue : Double.doubleToRawLongBits(vars[i].floatValue);
+            if (args[i] != bits) {
+                args[i] = bits;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /** Reads lambda parameter directly from its primitive field */
+    static final class ArgI extends OpI {
+        final LambdaVariable var;
+        public ArgI(LambdaVariable var) {
             this.var = var;
         }
         @Override
         public int eval() {
-            Value value = var.getValue();
-            if (value.getType() == Type.INT) { // just in case
-                return var.getValue().getInt();
-            } else {
-                error(var.getDeclaration(), "unexpected type (expected int): " + value.getType());
-                return 0;
-            }
+            return var.intValue;
         }
     }
 
-    private final class VarF extends OpF {
-        private final Variable var;
-        public VarF(Variable var) {
+    /** Reads lambda parameter directly from its primitive field */
+    static final class ArgF extends OpF {
+        final LambdaVariable var;
+        public ArgF(LambdaVariable var) {
             this.var = var;
         }
         @Override
         public double eval() {
-            Value value = var.getValue();
-            if (value.getType() == Type.FLOAT) { // just in case
-                return value.getFloat();
-            } else {
-                error(var.getDeclaration(), "unexpected type (expected float): " + value.getType());
-                return 0;
-            }
+            return var.floatValue;
         }
     }
 }
@@ -0,0 +1,74 @@
+package org.jb.evaluator.impl;
+
+/**
+ * Base class for compiled map and reduce transformations.
+ * Subclasses are generated at run time (see KernelCompiler)
+ * and loaded by their own class loaders, so everything they use should be public.
+ *
+ * Each subclass has a static apply method that calculates the transformation
+ * and overrides either map or one of the reduce methods with a loop that calls apply.
+ * Input is taken either from intIn or from floatIn (the one that is not null),
+ * same as in EvaluatorImpl.mapBlock and EvaluatorImpl.reduceBlock.
+ *
+ * Checked operations (division by int, int power) throw ArithmeticException;
+ * the caller then re-evaluates the block by the interpreter, which reports the error position.
+ * @author vkvashin
+ */
+public abstract class Kernel {
+
+    /** Writes transformed elements to either intOut or floatOut starting from the given offset */
+    public void map(int[] intIn, double[] floatIn, int[] intOut, double[] floatOut, int offset, int cnt) {
+        throw new UnsupportedOperationException();
+    }
+
+    /** @return accumulator after applying transformation to cnt elements */
+    public int reduce(int acc, int[] intIn, double[] floatIn, int cnt) {
+        throw new UnsupportedOperationException();
+    }
+
+    /** @return accumulator after applying transformation to cnt elements */
+    public double reduce(double acc, int[] intIn, double[] floatIn, int cnt) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Integer power by squaring; overflow wraps around, the same as in other int operations.
+     * Also used by the interpreter (EvaluatorImpl.PowII) and the AST walker.
+     */
+    public static int pow(int l, int r) {
+        if (r < 0) {
+            throw new ArithmeticException("negative power");
+        }
+        int result = 1;
+        while (r != 0) {
+            if ((r & 1) != 0) {
+                result *= l;
+            }
+            l *= l;
+            r >>>= 1;
+        }
+        return result;
+    }
+
+    /** (-1)^r, see EvaluatorImpl.SignPowII */
+    public static int signPow(int r) {
+        if (r < 0) {
+            throw new ArithmeticException("negative power");
+        }
+        return 1 - ((r & 1) << 1);
+    }
+
+    public static double pow(double l, int r) {
+        if (r < 0) {
+            throw new ArithmeticException("negative power");
+        }
+        return Math.pow(l, (double) r);
+    }
+
+    public static double div(double l, int r) {
+        if (r == 0) {
+            throw new ArithmeticException("/ by zero");
+        }
+        return l / (double) r;
+    }
+}
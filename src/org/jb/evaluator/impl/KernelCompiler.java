@@ -0,0 +1,327 @@
+package org.jb.evaluator.impl;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jb.ast.api.Type;
+import org.jb.evaluator.impl.EvaluatorImpl.ArgF;
+import org.jb.evaluator.impl.EvaluatorImpl.ArgI;
+import org.jb.evaluator.impl.EvaluatorImpl.ConstF;
+import org.jb.evaluator.impl.EvaluatorImpl.ConstI;
+import org.jb.evaluator.impl.EvaluatorImpl.DivFI;
+import org.jb.evaluator.impl.EvaluatorImpl.LambdaVariable;
+import org.jb.evaluator.impl.EvaluatorImpl.Op;
+import org.jb.evaluator.impl.EvaluatorImpl.PowFI;
+import org.jb.evaluator.impl.EvaluatorImpl.SharedF;
+import org.jb.evaluator.impl.EvaluatorImpl.SharedI;
+import org.jb.evaluator.impl.EvaluatorImpl.SignPowII;
+
+/**
+ * Compiles prepared transformations (see prepareExpr) into JVM byte code (see Kernel).
+ * Op trees are interpreted via virtual calls, and the call sites become megamorphic
+ * as soon as a script uses several operation kinds; generated code has no calls
+ * except for the static apply method (and Math.pow), so JIT can inline the whole loop.
+ * Kernels are cached by the text of the prepared expression:
+ * defining a class is expensive, and each new class has to be warmed up by JIT again.
+ * @author vkvashin
+ */
+final class KernelCompiler {
+
+    private static final String KERNEL = "org/jb/evaluator/impl/Kernel";
+    private static final AtomicInteger counter = new AtomicInteger();
+
+    private final ConcurrentMap<String, Kernel> cache = new ConcurrentHashMap<>();
+
+    /** @return compiled kernel or null if op contains operations that can not be compiled */
+    public Kernel compileMap(Op op, LambdaVariable var, boolean isFloatOut) {
+        final String text = describe(op, var);
+        if (text == null || (!isFloatOut && op.getReturnType() != Op.ReturnType.INT)) {
+            return null;
+        }
+        final String key = "map " + typeChar(var.getType()) + (isFloatOut ? 'D' : 'I') + ' ' + text;
+        return cache.computeIfAbsent(key, (k) -> define(emitMap(op, var, isFloatOut)));
+    }
+
+    /** @return compiled kernel or null if op contains operations that can not be compiled */
+    public Kernel compileReduce(Op op, LambdaVariable prev, LambdaVariable curr) {
+        final String text = describe(op, prev, curr);
+        if (text == null || (prev.getType() == Type.INT && op.getReturnType() != Op.ReturnType.INT)) {
+            return null;
+        }
+        final String key = "reduce " + typeChar(prev.getType()) + typeChar(curr.getType()) + ' ' + text;
+        return cache.computeIfAbsent(key, (k) -> define(emitReduce(op, prev, curr)));
+    }
+
+    /** @return text that identifies the expression or null if it can not be compiled */
+    static String describe(Op op, LambdaVariable... vars) {
+        if (op instanceof ConstI) {
+            return Integer.toString(((ConstI) op).value);
+        } else if (op instanceof ConstF) {
+            return Double.toString(((ConstF) op).value) + 'D';
+        } else if (op instanceof ArgI || op instanceof ArgF) {
+            final int index = indexOf(op, vars);
+            return (index < 0) ? null : "$" + index;
+        } else if (op instanceof SharedI || op instanceof SharedF) {
+            return describe(shared(op), vars);
+        } else if (op.getOpKind() != null) {
+            final String left = describe(op.getLeft(), vars);
+            final String right = (left == null) ? null : describe(op.getRight(), vars);
+            return (right == null) ? null : "(" + op.getClass().getSimpleName() + ' ' + left + ' ' + right + ')';
+        } else {
+            return null; // nested sequences, maps and reduces
+        }
+    }
+
+    static int indexOf(Op arg, LambdaVariable... vars) {
+        final LambdaVariable var = (arg instanceof ArgI) ? ((ArgI) arg).var : ((ArgF) arg).var;
+        for (int i = 0; i < vars.length; i++) {
+            if (vars[i] == var) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static ClassEmitter emitMap(Op op, LambdaVariable var, boolean isFloatOut) {
+        ClassEmitter ce = newClass();
+        emitApply(ce, op, var);
+        final boolean isIntIn = var.getType() == Type.INT;
+        // this, intIn, floatIn, intOut, floatOut, offset, cnt, i
+        final int offsetSlot = 5;
+        final int cntSlot = 6;
+        final int iSlot = 7;
+        ClassEmitter.MethodEmitter m = ce.method(ClassEmitter.ACC_PUBLIC, "map", "([I[D[I[DII)V", 8);
+        m.pushInt(0);
+        m.store(ClassEmitter.ISTORE, iSlot);
+        final int loop = m.position();
+        m.load(ClassEmitter.ILOAD, iSlot);
+        m.load(ClassEmitter.ILOAD, cntSlot);
+        final int exit = m.jump(ClassEmitter.IF_ICMPGE, -2);
+        // out[offset + i] = apply(in[i])
+        m.load(ClassEmitter.ALOAD, isFloatOut ? 4 : 3);
+        m.load(ClassEmitter.ILOAD, offsetSlot);
+        m.load(ClassEmitter.ILOAD, iSlot);
+        m.op(ClassEmitter.IADD, -1);
+        emitArrayLoad(m, isIntIn ? 1 : 2, iSlot, isIntIn);
+        emitApplyCall(ce, m, op, var);
+        if (isFloatOut && op.getReturnType() == Op.ReturnType.INT) {
+            m.op(ClassEmitter.I2D, 1);
+        }
+        m.op(isFloatOut ? ClassEmitter.DASTORE : ClassEmitter.IASTORE, isFloatOut ? -4 : -3);
+        m.iinc(iSlot, 1);
+        m.jumpBack(ClassEmitter.GOTO, loop, 0);
+        m.patchJump(exit);
+        m.op(ClassEmitter.RETURN, 0);
+        return ce;
+    }
+
+    private static ClassEmitter emitReduce(Op op, LambdaVariable prev, LambdaVariable curr) {
+        ClassEmitter ce = newClass();
+        emitApply(ce, op, prev, curr);
+        final boolean isFloat = prev.getType() == Type.FLOAT;
+        final boolean isIntIn = curr.getType() == Type.INT;
+        // this, acc, intIn, floatIn, cnt, i
+        final int accSlot = 1;
+        final int inSlot = isFloat ? 3 : 2;
+        final int cntSlot = inSlot + 2;
+        final int iSlot = cntSlot + 1;
+        ClassEmitter.MethodEmitter m = ce.method(ClassEmitter.ACC_PUBLIC, "reduce", isFloat ? "(D[I[DI)D" : "(I[I[DI)I", iSlot + 1);
+        m.pushInt(0);
+        m.store(ClassEmitter.ISTORE, iSlot);
+        final int loop = m.position();
+        m.load(ClassEmitter.ILOAD, iSlot);
+        m.load(ClassEmitter.ILOAD, cntSlot);
+        final int exit = m.jump(ClassEmitter.IF_ICMPGE, -2);
+        // acc = apply(acc, in[i])
+        m.load(isFloat ? ClassEmitter.DLOAD : ClassEmitter.ILOAD, accSlot);
+        emitArrayLoad(m, isIntIn ? inSlot : inSlot + 1, iSlot, isIntIn);
+        emitApplyCall(ce, m, op, prev, curr);
+        if (isFloat && op.getReturnType() == Op.ReturnType.INT) {
+            m.op(ClassEmitter.I2D, 1);
+        }
+        m.store(isFloat ? ClassEmitter.DSTORE : ClassEmitter.ISTORE, accSlot);
+        m.iinc(iSlot, 1);
+        m.jumpBack(ClassEmitter.GOTO, loop, 0);
+        m.patchJump(exit);
+        m.load(isFloat ? ClassEmitter.DLOAD : ClassEmitter.ILOAD, accSlot);
+        m.op(isFloat ? ClassEmitter.DRETURN : ClassEmitter.IRETURN, isFloat ? -2 : -1);
+        return ce;
+    }
+
+    private static ClassEmitter newClass() {
+        ClassEmitter ce = new ClassEmitter("org/jb/evaluator/impl/gen/Kernel" + counter.incrementAndGet(), KERNEL);
+        ce.defaultConstructor();
+        return ce;
+    }
+
+    private static void emitArrayLoad(ClassEmitter.MethodEmitter m, int arraySlot, int indexSlot, boolean isInt) {
+        m.load(ClassEmitter.ALOAD, arraySlot);
+        m.load(ClassEmitter.ILOAD, indexSlot);
+        m.op(isInt ? ClassEmitter.IALOAD : ClassEmitter.DALOAD, isInt ? -1 : 0);
+    }
+
+    /** Emits static apply method; its parameters are lambda parameters */
+    private static void emitApply(ClassEmitter ce, Op op, LambdaVariable... vars) {
+        final Frame frame = new Frame(vars);
+        frame.allocate(op);
+        ClassEmitter.MethodEmitter m = ce.method(ClassEmitter.ACC_PUBLIC | ClassEmitter.ACC_STATIC, "apply", applyDescriptor(op, vars), frame.maxLocals);
+        emit(m, op, frame);
+        m.op(op.getReturnType() == Op.ReturnType.INT ? ClassEmitter.IRETURN : ClassEmitter.DRETURN, 0);
+    }
+
+    /** Local variables of apply: lambda parameters followed by values of common subexpressions (see share) */
+    private static final class Frame {
+        public final LambdaVariable[] vars;
+        public final int[] slots;
+        /** common subexpression => its slot; subexpressions that did not fit into 256 slots are recalculated */
+        public final Map<Op, Integer> sharedSlots = new IdentityHashMap<>();
+        /** common subexpressions that are already calculated at the current point of apply */
+        public final Set<Op> stored = Collections.newSetFromMap(new IdentityHashMap<Op, Boolean>());
+        public int maxLocals;
+        public Frame(LambdaVariable[] vars) {
+            this.vars = vars;
+            this.slots = new int[vars.length];
+            for (int i = 0; i < vars.length; i++) {
+                slots[i] = maxLocals;
+                maxLocals += width(vars[i].getType());
+            }
+        }
+        public void allocate(Op op) {
+            if (op instanceof SharedI || op instanceof SharedF) {
+                final int width = (op.getReturnType() == Op.ReturnType.INT) ? 1 : 2;
+                if (!sharedSlots.containsKey(op) && maxLocals + width <= 256) {
+                    sharedSlots.put(op, maxLocals);
+                    maxLocals += width;
+                }
+                allocate(shared(op));
+            } else if (op.getOpKind() != null) {
+                allocate(op.getLeft());
+                allocate(op.getRight());
+            }
+        }
+    }
+
+    static Op shared(Op op) {
+        return (op instanceof SharedI) ? ((SharedI) op).op : ((SharedF) op).op;
+    }
+
+    private static void emitApplyCall(ClassEmitter ce, ClassEmitter.MethodEmitter m, Op op, LambdaVariable... vars) {
+        int delta = (op.getReturnType() == Op.ReturnType.INT) ? 1 : 2;
+        for (LambdaVariable var : vars) {
+            delta -= width(var.getType());
+        }
+        m.invoke(ClassEmitter.INVOKESTATIC, ce.getClassName(), "apply", applyDescriptor(op, vars), delta);
+    }
+
+    private static String applyDescriptor(Op op, LambdaVariable... vars) {
+        StringBuilder sb = new StringBuilder("(");
+        for (LambdaVariable var : vars) {
+            sb.append(typeChar(var.getType()));
+        }
+        return sb.append(')').append(op.getReturnType() == Op.ReturnType.INT ? 'I' : 'D').toString();
+    }
+
+    private static void emit(ClassEmitter.MethodEmitter m, Op op, Frame frame) {
+        if (op instanceof SharedI || op instanceof SharedF) {
+            final boolean isInt = op.getReturnType() == Op.ReturnType.INT;
+            final Integer slot = frame.sharedSlots.get(op);
+            if (slot == null) {
+                emit(m, shared(op), frame);
+            } else if (frame.stored.contains(op)) {
+                m.load(isInt ? ClassEmitter.ILOAD : ClassEmitter.DLOAD, slot);
+            } else {
+                // apply has no branches, so the first occurrence is always calculated before the others
+                emit(m, shared(op), frame);
+                m.op(isInt ? ClassEmitter.DUP : ClassEmitter.DUP2, isInt ? 1 : 2);
+                m.store(isInt ? ClassEmitter.ISTORE : ClassEmitter.DSTORE, slot);
+                frame.stored.add(op);
+            }
+        } else if (op instanceof ConstI) {
+            m.pushInt(((ConstI) op).value);
+        } else if (op instanceof ConstF) {
+            m.pushDouble(((ConstF) op).value);
+        } else if (op instanceof ArgI) {
+            m.load(ClassEmitter.ILOAD, frame.slots[indexOf(op, frame.vars)]);
+        } else if (op instanceof ArgF) {
+            m.load(ClassEmitter.DLOAD, frame.slots[indexOf(op, frame.vars)]);
+        } else if (op instanceof SignPowII) {
+            emit(m, op.getRight(), frame);
+            m.invoke(ClassEmitter.INVOKESTATIC, KERNEL, "signPow", "(I)I", 0);
+        } else if (op instanceof DivFI || op instanceof PowFI) {
+            // checked operations with int right operand, see Kernel
+            emitOperand(m, op.getLeft(), true, frame);
+            emit(m, op.getRight(), frame);
+            m.invoke(ClassEmitter.INVOKESTATIC, KERNEL, (op instanceof DivFI) ? "div" : "pow", "(DI)D", -1);
+        } else {
+            final boolean isFloat = op.getReturnType() == Op.ReturnType.FLOAT;
+            emitOperand(m, op.getLeft(), isFloat, frame);
+            emitOperand(m, op.getRight(), isFloat, frame);
+            switch (op.getOpKind()) {
+                case ADD:
+                    m.op(isFloat ? ClassEmitter.DADD : ClassEmitter.IADD, isFloat ? -2 : -1);
+                    break;
+                case SUB:
+                    m.op(isFloat ? ClassEmitter.DSUB : ClassEmitter.ISUB, isFloat ? -2 : -1);
+                    break;
+                case MUL:
+                    m.op(isFloat ? ClassEmitter.DMUL : ClassEmitter.IMUL, isFloat ? -2 : -1);
+                    break;
+                case DIV:
+                    m.op(isFloat ? ClassEmitter.DDIV : ClassEmitter.IDIV, isFloat ? -2 : -1);
+                    break;
+                case POW:
+                    if (isFloat) {
+                        m.invoke(ClassEmitter.INVOKESTATIC, "java/lang/Math", "pow", "(DD)D", -2);
+                    } else {
+                        m.invoke(ClassEmitter.INVOKESTATIC, KERNEL, "pow", "(II)I", -1);
+                    }
+                    break;
+                default:
+                    throw new AssertionError(op.getOpKind().name());
+            }
+        }
+    }
+
+    private static void emitOperand(ClassEmitter.MethodEmitter m, Op op, boolean isFloat, Frame frame) {
+        emit(m, op, frame);
+        if (isFloat && op.getReturnType() == Op.ReturnType.INT) {
+            m.op(ClassEmitter.I2D, 1);
+        }
+    }
+
+    private static char typeChar(Type type) {
+        return (type == Type.INT) ? 'I' : 'D';
+    }
+
+    private static int width(Type type) {
+        return (type == Type.INT) ? 1 : 2;
+    }
+
+    /** Each kernel has its own loader, so that kernels can be unloaded independently */
+    private static Kernel define(ClassEmitter ce) {
+        final String name = ce.getClassName().replace('/', '.');
+        try {
+            Class<?> cls = new KernelLoader().define(name, ce.toByteArray());
+            return (Kernel) cls.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError ex) {
+            // should never happen; the interpreter will be used instead
+            Logger.getLogger(EvaluatorImpl.class.getName()).log(Level.WARNING, "Can not compile " + name, ex);
+            return null;
+        }
+    }
+
+    private static final class KernelLoader extends ClassLoader {
+        public KernelLoader() {
+            super(Kernel.class.getClassLoader());
+        }
+        public Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+}
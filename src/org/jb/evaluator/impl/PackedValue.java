@@ -0,0 +1,235 @@
+package org.jb.evaluator.impl;
+
+import java.util.Arrays;
+import org.jb.ast.api.Type;
+
+/**
+ * A sequence stored block by block in compact encodings.
+ * An int block is a frame of reference along a line: element k is base + stride * k + residual[k],
+ * where residuals are unsigned bytes, unsigned shorts or ints, whichever is enough for the block;
+ * they are not stored at all if the block is exactly linear (e.g. map({0, n}, i -> i * 2)).
+ * A float block is stored as float[] if all its elements are exact floats, otherwise as double[].
+ * Unlike delta encoding, each block (and each element) is decoded independently of the others.
+ * Once filled (see fill), it is read only, so it can be read by several threads.
+ * @author vkvashin
+ */
+final class PackedValue extends Value {
+
+    /** Number of elements in a block: the same as evaluator blocks, so that a block is read by a single fill */
+    private static final int BLOCK_SIZE = EvaluatorImpl.BLOCK_SIZE;
+
+    private final long size;
+    private final boolean isFloat;
+    /** Int blocks only: base and stride of each block */
+    private final int[] bases;
+    private final int[] strides;
+    /** byte[], short[], int[] or null (no residuals) for int blocks, float[] or double[] for float ones */
+    private final Object[] blocks;
+
+    public PackedValue(long size, boolean isFloat) {
+        this.size = size;
+        this.isFloat = isFloat;
+        final int blockCount = (int) ((size + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        this.blocks = new Object[blockCount];
+        this.bases = isFloat ? null : new int[blockCount];
+        this.strides = isFloat ? null : new int[blockCount];
+    }
+
+    @Override
+    public Type getType() {
+        return isFloat ? Type.SEQ_FLOAT : Type.SEQ_INT;
+    }
+
+    @Override
+    public long getSize() {
+        return size;
+    }
+
+    @Override
+    public boolean isMaterialized() {
+        return true;
+    }
+
+    /** @return number of bytes held by the encoded elements */
+    public long getBytes() {
+        long bytes = isFloat ? 0 : (long) blocks.length * 2 * Integer.BYTES;
+        for (Object block : blocks) {
+            if (block instanceof byte[]) {
+                bytes += ((byte[]) block).length;
+            } else if (block instanceof short[]) {
+                bytes += ((short[]) block).length * Short.BYTES;
+            } else if (block instanceof int[]) {
+                bytes += ((int[]) block).length * Integer.BYTES;
+            } else if (block instanceof float[]) {
+                bytes += ((float[]) block).length * Float.BYTES;
+            } else if (block instanceof double[]) {
+                bytes += ((double[]) block).length * Double.BYTES;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Stores the blocks that start within [from, to); each block is read from the cursor as a whole.
+     * Slices that do not overlap can be filled in parallel: each block starts in exactly one of them.
+     */
+    public boolean fill(SeqCursor cursor, long from, long to) {
+        final int[] intBuf = isFloat ? null : new int[BLOCK_SIZE];
+        final double[] floatBuf = isFloat ? new double[BLOCK_SIZE] : null;
+        final int last = (int) ((to + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        for (int b = (int) ((from + BLOCK_SIZE - 1) / BLOCK_SIZE); b < last; b++) {
+            final long start = (long) b * BLOCK_SIZE;
+            final int cnt = (int) Math.min(BLOCK_SIZE, size - start);
+            if (isFloat) {
+                if (!cursor.fill(start, floatBuf, 0, cnt)) {
+                    return false;
+                }
+                blocks[b] = packFloats(floatBuf, cnt);
+            } else {
+                if (!cursor.fill(start, intBuf, 0, cnt)) {
+                    return false;
+                }
+                packInts(b, intBuf, cnt);
+            }
+        }
+        return true;
+    }
+
+    private void packInts(int b, int[] buf, int cnt) {
+        int stride = 0;
+        long range = residualRange(buf, cnt, 0);
+        if (range != 0 && cnt > 1) {
+            // the first one is exact for linear blocks, the second one is closer for noisy but steady ones
+            final int step = buf[1] - buf[0];
+            final int slope = (int) (((long) buf[cnt - 1] - buf[0]) / (cnt - 1));
+            for (int candidate : new int[] { step, slope }) {
+                final long r = residualRange(buf, cnt, candidate);
+                if (r < range) {
+                    range = r;
+                    stride = candidate;
+                }
+            }
+        }
+        int base = Integer.MAX_VALUE;
+        for (int k = 0, line = 0; k < cnt; k++, line += stride) {
+            base = Math.min(base, buf[k] - line);
+        }
+        bases[b] = base;
+        strides[b] = stride;
+        if (range == 0) {
+            blocks[b] = null;
+        } else if (range <= 0xFF) {
+            final byte[] residuals = new byte[cnt];
+            for (int k = 0, line = base; k < cnt; k++, line += stride) {
+                residuals[k] = (byte) (buf[k] - line);
+            }
+            blocks[b] = residuals;
+        } else if (range <= 0xFFFF) {
+            final short[] residuals = new short[cnt];
+            for (int k = 0, line = base; k < cnt; k++, line += stride) {
+                residuals[k] = (short) (buf[k] - line);
+            }
+            blocks[b] = residuals;
+        } else {
+            final int[] residuals = new int[cnt];
+            for (int k = 0, line = base; k < cnt; k++, line += stride) {
+                residuals[k] = buf[k] - line;
+            }
+            blocks[b] = residuals;
+        }
+    }
+
+    /** @return max - min of buf[k] - stride * k (int arithmetic wraps around, the same as decoding does) */
+    private static long residualRange(int[] buf, int cnt, int stride) {
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for (int k = 0, line = 0; k < cnt; k++, line += stride) {
+            final int r = buf[k] - line;
+            min = Math.min(min, r);
+            max = Math.max(max, r);
+        }
+        return (long) max - min;
+    }
+
+    private static Object packFloats(double[] buf, int cnt) {
+        for (int k = 0; k < cnt; k++) {
+            if (Double.doubleToRawLongBits((double) (float) buf[k]) != Double.doubleToRawLongBits(buf[k])) {
+                return Arrays.copyOf(buf, cnt);
+            }
+        }
+        final float[] narrow = new float[cnt];
+        for (int k = 0; k < cnt; k++) {
+            narrow[k] = (float) buf[k];
+        }
+        return narrow;
+    }
+
+    /** Decodes cnt elements of block b starting from its element k */
+    private void unpack(int b, int k, int[] buf, int offset, int cnt) {
+        final Object block = blocks[b];
+        final int stride = strides[b];
+        int line = bases[b] + stride * k;
+        if (block == null) {
+            for (int i = 0; i < cnt; i++, line += stride) {
+                buf[offset + i] = line;
+            }
+        } else if (block instanceof byte[]) {
+            final byte[] residuals = (byte[]) block;
+            for (int i = 0; i < cnt; i++, line += stride) {
+                buf[offset + i] = line + (residuals[k + i] & 0xFF);
+            }
+        } else if (block instanceof short[]) {
+            final short[] residuals = (short[]) block;
+            for (int i = 0; i < cnt; i++, line += stride) {
+                buf[offset + i] = line + (residuals[k + i] & 0xFFFF);
+            }
+        } else {
+            final int[] residuals = (int[]) block;
+            for (int i = 0; i < cnt; i++, line += stride) {
+                buf[offset + i] = line + residuals[k + i];
+            }
+        }
+    }
+
+    private void unpack(int b, int k, double[] buf, int offset, int cnt) {
+        final Object block = blocks[b];
+        if (block instanceof float[]) {
+            final float[] narrow = (float[]) block;
+            for (int i = 0; i < cnt; i++) {
+                buf[offset + i] = narrow[k + i];
+            }
+        } else {
+            System.arraycopy((double[]) block, k, buf, offset, cnt);
+        }
+    }
+
+    @Override
+    public SeqCursor openCursor() {
+        return new SeqCursor() {
+            @Override
+            public boolean fill(long from, int[] buf, int offset, int count) {
+                while (count > 0) {
+                    final int k = (int) (from % BLOCK_SIZE);
+                    final int cnt = Math.min(BLOCK_SIZE - k, count);
+                    unpack((int) (from / BLOCK_SIZE), k, buf, offset, cnt);
+                    from += cnt;
+                    offset += cnt;
+                    count -= cnt;
+                }
+                return true;
+            }
+            @Override
+            public boolean fill(long from, double[] buf, int offset, int count) {
+                while (count > 0) {
+                    final int k = (int) (from % BLOCK_SIZE);
+                    final int cnt = Math.min(BLOCK_SIZE - k, count);
+                    unpack((int) (from / BLOCK_SIZE), k, buf, offset, cnt);
+                    from += cnt;
+                    offset += cnt;
+                    count -= cnt;
+                }
+                return true;
+            }
+        };
+    }
+}
@@ -0,0 +1,376 @@
+package org.jb.evaluator.impl;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import org.jb.ast.api.*;
+import org.jb.evaluator.impl.EvaluatorImpl.AffinePartial;
+import org.jb.evaluator.impl.EvaluatorImpl.MapValue;
+import org.jb.evaluator.impl.EvaluatorImpl.RangeValue;
+
+/**
+ * Requests and responses exchanged with worker JVMs (see RemoteWorkers).
+ * A request is its kind, a slice of a sequence (see RemoteSeq) and the parameters of the operation;
+ * a response is whether the worker has succeeded, followed by the result.
+ * The coordinator sends requests (see reduce and materialize), a worker serves them (see serve);
+ * both sides leave the evaluation itself to EvaluatorImpl.
+ * @author vkvashin
+ */
+final class RemoteProtocol {
+
+    private static final byte REDUCE = 1;
+    private static final byte MATERIALIZE = 2;
+
+    /** Stored elements are sent by blocks of this size */
+    private static final int BLOCK_SIZE = EvaluatorImpl.BLOCK_SIZE;
+
+    /**
+     * Request to reduce a slice in a worker JVM; see serveReduce.
+     * The switches of this evaluator are sent with it, since the worker is shared with others.
+     */
+    static RemoteWorkers.Call<AffinePartial> reduce(RemoteSeq seq, long from, long to, boolean isFloat, boolean compensated, String[] lambda) {
+        return (in, out) -> {
+            out.writeByte(REDUCE);
+            seq.write(out, from, to);
+            out.writeBoolean(isFloat);
+            out.writeBoolean(compensated);
+            out.writeUTF(lambda[0]);
+            out.writeUTF(lambda[1]);
+            out.writeUTF(lambda[2]);
+            out.flush();
+            if (!in.readBoolean()) {
+                return null;
+            }
+            final AffinePartial partial = new AffinePartial(isFloat, in.readBoolean());
+            partial.intM = in.readInt();
+            partial.intC = in.readInt();
+            partial.floatM = in.readDouble();
+            partial.floatC = in.readDouble();
+            partial.floatErr = in.readDouble();
+            return partial;
+        };
+    }
+
+    /** Request to calculate a slice in a worker JVM; the result is an array value of its elements, see serveMaterialize */
+    static RemoteWorkers.Call<Value> materialize(RemoteSeq seq, long from, long to, boolean isFloat) {
+        return (in, out) -> {
+            out.writeByte(MATERIALIZE);
+            seq.write(out, from, to);
+            out.flush();
+            if (!in.readBoolean()) {
+                return null;
+            }
+            final int cnt = (int) (to - from);
+            if (isFloat) {
+                final double[] values = new double[cnt];
+                for (int i = 0; i < cnt; i++) {
+                    values[i] = in.readDouble();
+                }
+                return Value.create(values);
+            } else {
+                final int[] values = new int[cnt];
+                for (int i = 0; i < cnt; i++) {
+                    values[i] = in.readInt();
+                }
+                return Value.create(values);
+            }
+        };
+    }
+
+    /**
+     * A sequence in the form it is sent to worker JVMs (see RemoteWorkers):
+     * a range or stored elements (only those of the slice are sent), followed by the maps over it.
+     * Transformations are sent as source text (see toSource): a worker parses and prepares them itself.
+     */
+    static final class RemoteSeq {
+
+        private static final byte END = 0;
+        private static final byte RANGE = 1;
+        private static final byte INTS = 2;
+        private static final byte FLOATS = 3;
+        private static final byte MAP = 4;
+
+        private final Value source;
+        /** Parameter name and transformation of each map, the innermost one first */
+        private final List<String[]> maps;
+
+        private RemoteSeq(Value source, List<String[]> maps) {
+            this.source = source;
+            this.maps = maps;
+        }
+
+        /** @return description of the sequence or null if it can not be sent */
+        public static RemoteSeq create(Value seq) {
+            final List<String[]> maps = new ArrayList<>();
+            while (seq instanceof MapValue) {
+                final MapValue map = (MapValue) seq;
+                final String[] lambda = toSource(map.transformation, map.varDecl);
+                if (lambda == null) {
+                    return null;
+                }
+                maps.add(0, lambda);
+                seq = map.source;
+            }
+            return seq.isMaterialized() ? new RemoteSeq(seq, maps) : null;
+        }
+
+        public void write(DataOutputStream out, long from, long to) throws IOException {
+            if (source instanceof RangeValue) {
+                final RangeValue range = (RangeValue) source;
+                out.writeByte(RANGE);
+                out.writeInt(range.getIntAt(from));
+                out.writeInt(range.stride);
+                out.writeLong(to - from);
+            } else {
+                final boolean isFloat = source.getType() == Type.SEQ_FLOAT;
+                out.writeByte(isFloat ? FLOATS : INTS);
+                out.writeInt((int) (to - from));
+                final SeqCursor cursor = source.openCursor();
+                final int[] intBuf = isFloat ? null : new int[BLOCK_SIZE];
+                final double[] floatBuf = isFloat ? new double[BLOCK_SIZE] : null;
+                for (long blockStart = from; blockStart < to; blockStart += BLOCK_SIZE) {
+                    final int cnt = (int) Math.min(BLOCK_SIZE, to - blockStart);
+                    if (isFloat) {
+                        cursor.fill(blockStart, floatBuf, 0, cnt);
+                        for (int i = 0; i < cnt; i++) {
+                            out.writeDouble(floatBuf[i]);
+                        }
+                    } else {
+                        cursor.fill(blockStart, intBuf, 0, cnt);
+                        for (int i = 0; i < cnt; i++) {
+                            out.writeInt(intBuf[i]);
+                        }
+                    }
+                }
+            }
+            for (String[] map : maps) {
+                out.writeByte(MAP);
+                out.writeUTF(map[0]);
+                out.writeUTF(map[1]);
+            }
+            out.writeByte(END);
+        }
+    }
+
+    /**
+     * @param params declarations of the lambda parameters
+     * @return parameter names followed by the source text of the transformation,
+     *  or null if it can not be sent to a worker
+     */
+    static String[] toSource(Expr transformation, DeclStatement... params) {
+        final String[] result = new String[params.length + 1];
+        for (int i = 0; i < params.length; i++) {
+            result[i] = params[i].getDelarationName().toString();
+        }
+        try {
+            final StringBuilder sb = new StringBuilder();
+            toSource(transformation, sb);
+            result[params.length] = sb.toString();
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+        // see DataOutputStream.writeUTF
+        return (result[params.length].length() < 0x4000) ? result : null;
+    }
+
+    /** Operations are parenthesized, so that the text is parsed into the same tree */
+    private static void toSource(Expr expr, StringBuilder sb) {
+        switch (expr.getNodeKind()) {
+            case PAREN:
+                sb.append('(');
+                final Expr child = ((ParenExpr) expr).getFirstChild();
+                if (child instanceof Literal) {
+                    sb.append(((Literal) child).getText());
+                } else {
+                    toSource(child, sb);
+                }
+                sb.append(')');
+                break;
+            case OP:
+                final BinaryOpExpr op = (BinaryOpExpr) expr;
+                sb.append('(');
+                toSource(op.getLeft(), sb);
+                sb.append(' ').append(op.getOpKind().id).append(' ');
+                toSource(op.getRight(), sb);
+                sb.append(')');
+                break;
+            case ID:
+                sb.append(((IdExpr) expr).getName());
+                break;
+            case INT:
+            case FLOAT:
+                final CharSequence text = ((Literal) expr).getText();
+                // the sign is a part of the literal
+                if (text.length() > 0 && text.charAt(0) == '-') {
+                    sb.append('(').append(text).append(')');
+                } else {
+                    sb.append(text);
+                }
+                break;
+            case SEQ:
+                sb.append('{');
+                toSource(((SeqExpr) expr).getFirst(), sb);
+                sb.append(", ");
+                toSource(((SeqExpr) expr).getLast(), sb);
+                sb.append('}');
+                break;
+            case MAP:
+                final MapExpr map = (MapExpr) expr;
+                sb.append("map(");
+                toSource(map.getSequence(), sb);
+                sb.append(", ").append(map.getVar().getDelarationName()).append(" -> ");
+                toSource(map.getTransformation(), sb);
+                sb.append(')');
+                break;
+            case REDUCE:
+                final ReduceExpr reduce = (ReduceExpr) expr;
+                sb.append("reduce(");
+                toSource(reduce.getSequence(), sb);
+                sb.append(", ");
+                toSource(reduce.getDefValue(), sb);
+                sb.append(", ").append(reduce.getPrev().getDelarationName()).append(' ').append(reduce.getCurr().getDelarationName()).append(" -> ");
+                toSource(reduce.getTransformation(), sb);
+                sb.append(')');
+                break;
+            default:
+                throw new IllegalArgumentException("unexpected node: " + expr.getNodeKind());
+        }
+    }
+
+    /**
+     * Worker side of RemoteWorkers: serves requests until the connection is closed.
+     * Requests are evaluated by an evaluator that does not run anything in parallel
+     * (it is kept for the connection, so that kernels are compiled once, see KernelCompiler);
+     * if it reports an error, the worker responds with a failure, and the coordinator calculates the slice itself
+     * (and reports the error with the right position).
+     * @param parser parses a single expression; returns null in the case of errors
+     */
+    static void serve(DataInputStream in, DataOutputStream out, Function<String, Expr> parser) throws IOException {
+        final AtomicBoolean failed = new AtomicBoolean();
+        final EvaluatorImpl evaluator = new EvaluatorImpl(new StringBuilder(), false, d -> failed.set(true));
+        // the run and its budget are the coordinator's
+        evaluator.setTimeBudget(0);
+        int request;
+        while ((request = in.read()) >= 0) {
+            failed.set(false);
+            final Value seq = readSeq(evaluator, in, parser);
+            if (request == REDUCE) {
+                serveReduce(evaluator, seq, in, out, parser, failed);
+            } else if (request == MATERIALIZE) {
+                serveMaterialize(evaluator, seq, out, failed);
+            } else {
+                throw new IOException("unexpected request " + request);
+            }
+            out.flush();
+        }
+    }
+
+    /** @return the sequence written by RemoteSeq.write or Value.ERROR if it can not be evaluated */
+    private static Value readSeq(EvaluatorImpl evaluator, DataInputStream in, Function<String, Expr> parser) throws IOException {
+        Value seq = Value.ERROR;
+        while (true) {
+            final byte tag = in.readByte();
+            switch (tag) {
+                case RemoteSeq.RANGE:
+                    final int first = in.readInt();
+                    final int stride = in.readInt();
+                    seq = new RangeValue(first, stride, in.readLong());
+                    break;
+                case RemoteSeq.INTS:
+                    final int[] ints = new int[in.readInt()];
+                    for (int i = 0; i < ints.length; i++) {
+                        ints[i] = in.readInt();
+                    }
+                    seq = Value.create(ints);
+                    break;
+                case RemoteSeq.FLOATS:
+                    final double[] floats = new double[in.readInt()];
+                    for (int i = 0; i < floats.length; i++) {
+                        floats[i] = in.readDouble();
+                    }
+                    seq = Value.create(floats);
+                    break;
+                case RemoteSeq.MAP:
+                    final String var = in.readUTF();
+                    final String transformation = in.readUTF();
+                    if (seq != Value.ERROR) {
+                        final Expr expr = parser.apply("map(" + placeholder(seq) + ", " + var + " -> " + transformation + ")");
+                        if (expr instanceof MapExpr) {
+                            seq = evaluator.createMap(seq, ((MapExpr) expr).getVar(), ((MapExpr) expr).getTransformation());
+                        } else {
+                            seq = Value.ERROR;
+                        }
+                    }
+                    break;
+                case RemoteSeq.END:
+                    return seq;
+                default:
+                    throw new IOException("unexpected tag " + tag);
+            }
+        }
+    }
+
+    /** @return source of a sequence of the same type as seq; lambdas parsed over it get the right parameter types */
+    private static String placeholder(Value seq) {
+        return (seq.getType() == Type.SEQ_FLOAT) ? "map({0, 0}, i -> 0.0)" : "{0, 0}";
+    }
+
+    private static void serveReduce(EvaluatorImpl evaluator, Value seq, DataInputStream in, DataOutputStream out, Function<String, Expr> parser, AtomicBoolean failed) throws IOException {
+        final boolean isFloat = in.readBoolean();
+        final boolean compensated = in.readBoolean();
+        final String prev = in.readUTF();
+        final String curr = in.readUTF();
+        final String transformation = in.readUTF();
+        AffinePartial partial = null;
+        if (seq != Value.ERROR) {
+            final Expr expr = parser.apply("reduce(" + placeholder(seq) + ", " + (isFloat ? "0.0" : "0") + ", " + prev + " " + curr + " -> " + transformation + ")");
+            if (expr instanceof ReduceExpr) {
+                try {
+                    partial = evaluator.reduceSlice(seq, isFloat, compensated, (ReduceExpr) expr);
+                } catch (RuntimeException ex) {
+                    failed.set(true);
+                }
+            }
+        }
+        if (partial == null || failed.get()) {
+            out.writeBoolean(false);
+            return;
+        }
+        out.writeBoolean(true);
+        out.writeBoolean(partial.compensated);
+        out.writeInt(partial.intM);
+        out.writeInt(partial.intC);
+        out.writeDouble(partial.floatM);
+        out.writeDouble(partial.floatC);
+        out.writeDouble(partial.floatErr);
+    }
+
+    private static void serveMaterialize(EvaluatorImpl evaluator, Value seq, DataOutputStream out, AtomicBoolean failed) throws IOException {
+        Value result = null;
+        if (seq != Value.ERROR) {
+            try {
+                result = evaluator.materializeSlice(seq);
+            } catch (RuntimeException ex) {
+                failed.set(true);
+            }
+        }
+        if (result == null || failed.get()) {
+            out.writeBoolean(false);
+            return;
+        }
+        out.writeBoolean(true);
+        if (result.getType() == Type.SEQ_FLOAT) {
+            for (double value : result.getFloatArray()) {
+                out.writeDouble(value);
+            }
+        } else {
+            for (int value : result.getIntArray()) {
+                out.writeInt(value);
+            }
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package org.jb.evaluator.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jb.ast.api.ASTNode;
+import org.jb.ast.api.Expr;
+import org.jb.ast.api.OutStatement;
+import org.jb.lexer.api.Lexer;
+import org.jb.lexer.api.TokenStreamException;
+import org.jb.parser.api.Parser;
+
+/**
+ * Worker JVMs that calculate slices of large map and reduce operations,
+ * so that the heap and GC of the process that runs the script (the coordinator) are not the limit.
+ *
+ * Workers are started by the coordinator when the first operation needs them (see jbs.workers)
+ * with the same class path and jbs.* system properties, except for those EvaluatorImpl has already read
+ * (see EvaluatorImpl.getWorkerProperties); jbs.worker.options are added to their command line.
+ * Each one connects back to a loopback server socket and serves requests one by one until the connection is closed.
+ * Requests and responses are described in RemoteProtocol.
+ * Workers are shared by all evaluators and live as long as the coordinator (they are destroyed by a shutdown hook).
+ * If a worker dies, its connection is dropped; operations then go to the remaining ones.
+ * @author vkvashin
+ */
+public final class RemoteWorkers {
+
+    /** How long the coordinator waits for workers to connect */
+    private static final int START_TIMEOUT = Integer.getInteger("jbs.worker.timeout", 30_000);
+
+    private static RemoteWorkers instance;
+    /** Set if workers could not be started: they are not started again */
+    private static boolean failed;
+
+    private final List<Process> processes = new ArrayList<>();
+    /** Connections that are not busy */
+    private final BlockingQueue<Connection> idle = new LinkedBlockingQueue<>();
+    /** Number of connections that are not dropped yet */
+    private final AtomicInteger alive = new AtomicInteger();
+    /** Threads that talk to workers; a call blocks one of them until the response comes */
+    private final ExecutorService io = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "jbs-worker-io");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** Request to a worker and reading its response */
+    interface Call<T> {
+        /** @return the result or null if the worker failed to calculate it */
+        T call(DataInputStream in, DataOutputStream out) throws IOException;
+    }
+
+    private static final class Connection {
+        private final Socket socket;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+
+        public Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                // nothing to do: the connection is dropped anyway
+            }
+        }
+    }
+
+    private RemoteWorkers() {
+    }
+
+    /**
+     * Starts count workers unless they are already started.
+     * @return workers or null if they could not be started
+     */
+    static synchronized RemoteWorkers get(int count) {
+        if (instance == null && !failed) {
+            try {
+                RemoteWorkers workers = new RemoteWorkers();
+                workers.start(count);
+                instance = workers;
+            } catch (IOException ex) {
+                failed = true;
+                Logger.getLogger(RemoteWorkers.class.getName()).log(Level.WARNING, "Can not start worker processes", ex);
+            }
+        }
+        return instance;
+    }
+
+    /** @return number of workers that are still alive */
+    public int size() {
+        return alive.get();
+    }
+
+    private void start(int count) throws IOException {
+        Runtime.getRuntime().addShutdownHook(new Thread(this::destroy));
+        // a worker sends the token first, so that other local processes can not connect instead
+        final byte[] random = new byte[16];
+        new SecureRandom().nextBytes(random);
+        final StringBuilder token = new StringBuilder();
+        for (byte b : random) {
+            token.append(String.format("%02x", b));
+        }
+        try (ServerSocket server = new ServerSocket(0, count, InetAddress.getLoopbackAddress())) {
+            final List<String> command = new ArrayList<>();
+            command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+            final Map<String, String> properties = new TreeMap<>();
+            for (Map.Entry<Object, Object> entry : System.getProperties().entrySet()) {
+                final String key = entry.getKey().toString();
+                if (key.startsWith("jbs.") && !key.startsWith("jbs.worker")) {
+                    properties.put(key, entry.getValue().toString());
+                }
+            }
+            properties.putAll(EvaluatorImpl.getWorkerProperties());
+            for (Map.Entry<String, String> entry : properties.entrySet()) {
+                command.add("-D" + entry.getKey() + "=" + entry.getValue());
+            }
+            for (String option : System.getProperty("jbs.worker.options", "").trim().split("\\s+")) {
+                if (!option.isEmpty()) {
+                    command.add(option);
+                }
+            }
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(RemoteWorkers.class.getName());
+            command.add(Integer.toString(server.getLocalPort()));
+            for (int i = 0; i < count; i++) {
+                final Process process = new ProcessBuilder(command)
+                        .redirectOutput(ProcessBuilder.Redirect.INHERIT)
+                        .redirectError(ProcessBuilder.Redirect.INHERIT)
+                        .start();
+                processes.add(process);
+                // the token is not passed on the command line, since that is visible to everyone
+                try (OutputStream stdin = process.getOutputStream()) {
+                    stdin.write((token + "\n").getBytes(StandardCharsets.US_ASCII));
+                }
+            }
+            server.setSoTimeout(START_TIMEOUT);
+            while (alive.get() < count) {
+                final Socket socket;
+                try {
+                    socket = server.accept();
+                } catch (SocketTimeoutException ex) {
+                    destroy();
+                    throw ex;
+                }
+                final Connection connection = new Connection(socket);
+                try {
+                    socket.setSoTimeout(START_TIMEOUT);
+                    if (token.toString().equals(connection.in.readUTF())) {
+                        socket.setSoTimeout(0);
+                        idle.add(connection);
+                        alive.incrementAndGet();
+                        continue;
+                    }
+                } catch (IOException ex) {
+                    // not a worker
+                }
+                connection.close();
+            }
+        }
+    }
+
+    private void destroy() {
+        for (Process process : processes) {
+            process.destroy();
+        }
+    }
+
+    /**
+     * Runs the call on the first worker that is not busy.
+     * @return future result; null if the worker failed or died (or if there are no workers left)
+     */
+    public <T> CompletableFuture<T> submit(Call<T> call) {
+        return CompletableFuture.supplyAsync(() -> {
+            Connection connection = null;
+            try {
+                while (connection == null) {
+                    if (alive.get() == 0) {
+                        return null;
+                    }
+                    connection = idle.poll(100, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            try {
+                final T result = call.call(connection.in, connection.out);
+                idle.add(connection);
+                return result;
+            } catch (IOException | RuntimeException ex) {
+                // the stream is out of sync now (or the worker is dead)
+                Logger.getLogger(RemoteWorkers.class.getName()).log(Level.WARNING, "Worker connection is dropped", ex);
+                connection.close();
+                alive.decrementAndGet();
+                return null;
+            }
+        }, io);
+    }
+
+    /** Worker: java -cp ... org.jb.evaluator.impl.RemoteWorkers port; the token is read from the standard input */
+    public static void main(String[] args) throws IOException {
+        final String token = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.US_ASCII)).readLine();
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), Integer.parseInt(args[0]))) {
+            final Connection connection = new Connection(socket);
+            connection.out.writeUTF(token);
+            connection.out.flush();
+            RemoteProtocol.serve(connection.in, connection.out, RemoteWorkers::parse);
+        }
+    }
+
+    /** @return expression of a single out statement or null if the source has errors */
+    private static Expr parse(String source) {
+        final AtomicBoolean errors = new AtomicBoolean();
+        final byte[] bytes = ("out " + source).getBytes(StandardCharsets.UTF_8);
+        try {
+            final ASTNode ast = new Parser().parse(new Lexer(new ByteArrayInputStream(bytes), d -> errors.set(true)).lex(), d -> errors.set(true));
+            return (!errors.get() && ast instanceof OutStatement) ? ((OutStatement) ast).getExpr() : null;
+        } catch (TokenStreamException ex) {
+            return null;
+        }
+    }
+}
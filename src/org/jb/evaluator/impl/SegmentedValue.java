@@ -0,0 +1,146 @@
+package org.jb.evaluator.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import org.jb.ast.api.Type;
+
+/**
+ * A sequence stored in fixed-size segments rather than in a single array:
+ * it is indexed by long, so it is not limited to 2^31 elements, and it never needs
+ * a huge contiguous allocation (which G1 would place into humongous regions).
+ * Segments are arrays, direct buffers (jbs.storage.offheap) or regions of a memory mapped file (see SpillFile).
+ * Once filled (see fill), it is read only, so it can be read by several threads.
+ * @author vkvashin
+ */
+final class SegmentedValue extends Value {
+
+    /** Allocates buffers for segments: direct buffers or regions of a file (see SpillFile) */
+    interface BufferAllocator {
+        ByteBuffer allocate(int bytes) throws IOException;
+    }
+
+    /** Number of elements in a segment; a multiple of BLOCK_SIZE, so that blocks do not cross segments */
+    public static final int SEGMENT_SIZE = 32 * EvaluatorImpl.BLOCK_SIZE;
+
+    private final long size;
+    private final boolean isFloat;
+    /** int[], double[], IntBuffer or DoubleBuffer */
+    private final Object[] segments;
+
+    /** @param allocator allocates buffers for segments; if null, segments are arrays */
+    public SegmentedValue(long size, boolean isFloat, BufferAllocator allocator) throws IOException {
+        this.size = size;
+        this.isFloat = isFloat;
+        this.segments = new Object[(int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+        for (int i = 0; i < segments.length; i++) {
+            final int length = (int) Math.min(SEGMENT_SIZE, size - (long) i * SEGMENT_SIZE);
+            if (allocator != null) {
+                final ByteBuffer bb = allocator.allocate(length * EvaluatorImpl.elementSize(isFloat)).order(ByteOrder.nativeOrder());
+                segments[i] = isFloat ? bb.asDoubleBuffer() : bb.asIntBuffer();
+            } else {
+                segments[i] = isFloat ? new double[length] : new int[length];
+            }
+        }
+    }
+
+    @Override
+    public Type getType() {
+        return isFloat ? Type.SEQ_FLOAT : Type.SEQ_INT;
+    }
+
+    @Override
+    public long getSize() {
+        return size;
+    }
+
+    @Override
+    public boolean isMaterialized() {
+        return true;
+    }
+
+    /** Stores elements [from, to) of the cursor's sequence; slices that do not overlap can be filled in parallel */
+    public boolean fill(SeqCursor cursor, long from, long to) {
+        final int[] intBuf = (!isFloat && segments[0] instanceof IntBuffer) ? new int[EvaluatorImpl.BLOCK_SIZE] : null;
+        final double[] floatBuf = (isFloat && segments[0] instanceof DoubleBuffer) ? new double[EvaluatorImpl.BLOCK_SIZE] : null;
+        for (long pos = from; pos < to; ) {
+            final Object segment = segments[(int) (pos / SEGMENT_SIZE)];
+            final int offset = (int) (pos % SEGMENT_SIZE);
+            int cnt = (int) Math.min(SEGMENT_SIZE - offset, to - pos);
+            final boolean ok;
+            if (segment instanceof int[]) {
+                ok = cursor.fill(pos, (int[]) segment, offset, cnt);
+            } else if (segment instanceof double[]) {
+                ok = cursor.fill(pos, (double[]) segment, offset, cnt);
+            } else if (segment instanceof IntBuffer) {
+                cnt = Math.min(cnt, EvaluatorImpl.BLOCK_SIZE);
+                ok = cursor.fill(pos, intBuf, 0, cnt);
+                at((IntBuffer) segment, offset).put(intBuf, 0, cnt);
+            } else {
+                cnt = Math.min(cnt, EvaluatorImpl.BLOCK_SIZE);
+                ok = cursor.fill(pos, floatBuf, 0, cnt);
+                at((DoubleBuffer) segment, offset).put(floatBuf, 0, cnt);
+            }
+            if (!ok) {
+                return false;
+            }
+            pos += cnt;
+        }
+        return true;
+    }
+
+    /** @return a view of the buffer positioned at the given index; views are not shared between threads */
+    private static IntBuffer at(IntBuffer segment, int position) {
+        final IntBuffer view = segment.duplicate();
+        view.position(position);
+        return view;
+    }
+
+    private static DoubleBuffer at(DoubleBuffer segment, int position) {
+        final DoubleBuffer view = segment.duplicate();
+        view.position(position);
+        return view;
+    }
+
+    @Override
+    public SeqCursor openCursor() {
+        return new SeqCursor() {
+            @Override
+            public boolean fill(long from, int[] buf, int offset, int count) {
+                while (count > 0) {
+                    final Object segment = segments[(int) (from / SEGMENT_SIZE)];
+                    final int pos = (int) (from % SEGMENT_SIZE);
+                    final int cnt = Math.min(SEGMENT_SIZE - pos, count);
+                    if (segment instanceof int[]) {
+                        System.arraycopy((int[]) segment, pos, buf, offset, cnt);
+                    } else {
+                        at((IntBuffer) segment, pos).get(buf, offset, cnt);
+                    }
+                    from += cnt;
+                    offset += cnt;
+                    count -= cnt;
+                }
+                return true;
+            }
+            @Override
+            public boolean fill(long from, double[] buf, int offset, int count) {
+                while (count > 0) {
+                    final Object segment = segments[(int) (from / SEGMENT_SIZE)];
+                    final int pos = (int) (from % SEGMENT_SIZE);
+                    final int cnt = Math.min(SEGMENT_SIZE - pos, count);
+                    if (segment instanceof double[]) {
+                        System.arraycopy((double[]) segment, pos, buf, offset, cnt);
+                    } else {
+                        at((DoubleBuffer) segment, pos).get(buf, offset, cnt);
+                    }
+                    from += cnt;
+                    offset += cnt;
+                    count -= cnt;
+                }
+                return true;
+            }
+        };
+    }
+}
@@ -0,0 +1,21 @@
+package org.jb.evaluator.impl;
+
+/**
+ * Reads sequence elements block by block.
+ * Each fill call stores count elements starting from the given index
+ * into the buffer starting from the given offset.
+ * Int sequences support only int[] buffers, float sequences only double[] ones.
+ * @author vkvashin
+ */
+abstract class SeqCursor {
+
+    /** @return false in the case of error (which should be already reported) */
+    public boolean fill(long from, int[] buf, int offset, int count) {
+        throw new  UnsupportedOperationException();
+    }
+
+    /** @return false in the case of error (which should be already reported) */
+    public boolean fill(long from, double[] buf, int offset, int count) {
+        throw new  UnsupportedOperationException();
+    }
+}
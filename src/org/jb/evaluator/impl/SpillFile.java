@@ -0,0 +1,53 @@
+package org.jb.evaluator.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Allocates segments in a memory mapped temporary file, so that a sequence can be larger than RAM:
+ * the OS pages it in and out as slices are processed.
+ * The file is mapped by large regions (there can be too many segments to map each one separately),
+ * but no more than the sequence needs, so the file is as large as the sequence;
+ * mappings stay valid after the file is closed. The file itself is deleted by EvaluatorImpl.dispose.
+ * @author vkvashin
+ */
+final class SpillFile implements SegmentedValue.BufferAllocator, Closeable {
+
+    /** Bytes mapped at once; a multiple of the segment size in bytes */
+    private static final int REGION_SIZE = 64 << 20;
+
+    private final FileChannel channel;
+    /** Total size of the segments that are going to be allocated */
+    private final long size;
+    private long mapped;
+    private MappedByteBuffer region;
+
+    /** @param size total size of the segments in bytes */
+    public SpillFile(Path file, long size) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.size = size;
+    }
+
+    @Override
+    public ByteBuffer allocate(int bytes) throws IOException {
+        if (region == null || region.remaining() < bytes) {
+            final int regionSize = (int) Math.max(bytes, Math.min(REGION_SIZE, size - mapped));
+            region = channel.map(FileChannel.MapMode.READ_WRITE, mapped, regionSize);
+            mapped += regionSize;
+        }
+        final ByteBuffer slice = region.slice();
+        slice.limit(bytes);
+        region.position(region.position() + bytes);
+        return slice;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
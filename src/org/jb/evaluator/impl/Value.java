@@ -0,0 +1,178 @@
+package org.jb.evaluator.impl;
+
+import org.jb.ast.api.Type;
+
+/**
+ * From performance perspective, it's questional whether its worth to have this class.
+ * But from the code readability and reliability we'd better use it than bare Object.
+ * So if profiler ever shows that this leads to a bottleneck, we'll (probably) drop it and use bare Object as value.
+ * @author vkvashin
+ */
+abstract class Value {
+    
+    static final Value ERROR = new ErrorValue();
+
+    public static Value create(int value) {
+        return new IntValue(value);
+    }
+
+    public static Value create(int[] value) {
+        return new IntArrayValue(value);
+    }
+
+    public static Value create(double value) {
+        return new FloatValue(value);
+    }
+
+    public static Value create(double[] value) {
+        return new FloatArrayValue(value);
+    }
+
+    public abstract Type getType();
+    
+    public int getInt() {
+        throw new  UnsupportedOperationException();
+    }
+    
+    public double getFloat() {
+        throw new  UnsupportedOperationException();
+    }
+    
+    public int[] getIntArray() {
+        throw new  UnsupportedOperationException();
+    }
+    
+    public double[] getFloatArray() {
+        throw new  UnsupportedOperationException();
+    }
+
+    /** For sequences only: number of elements */
+    public long getSize() {
+        throw new  UnsupportedOperationException();
+    }
+
+    /**
+     * For sequences only: opens a cursor to read elements.
+     * A cursor is not thread safe: each thread (slice) should open its own one.
+     */
+    public SeqCursor openCursor() {
+        throw new  UnsupportedOperationException();
+    }
+
+    /** For sequences only: estimated cost of reading an element, see CostModel */
+    public double getElementCost() {
+        return CostModel.READ_COST;
+    }
+
+    /**
+     * For sequences only: true if elements are stored in an array
+     * or are trivial to calculate (a range);
+     * false if a transformation is evaluated each time the sequence is read.
+     */
+    public boolean isMaterialized() {
+        return false;
+    }
+
+    private static final class ErrorValue extends Value{
+        @Override
+        public Type getType() {
+            return Type.ERRONEOUS;
+        }
+    }
+
+    private static final class IntValue extends Value {
+        private final int value;
+        public IntValue(int value) {
+            this.value = value;
+        }
+        @Override
+        public int getInt() {
+            return value;
+        }
+        @Override
+        public Type getType() {
+            return Type.INT;
+        }        
+    }
+
+    static final class IntArrayValue extends Value {
+        private final int[] value;
+        public IntArrayValue(int[] value) {
+            this.value = value;
+        }
+        @Override
+        public int[] getIntArray() {
+            return value;
+        }
+        @Override
+        public Type getType() {
+            return Type.SEQ_INT;
+        }        
+        @Override
+        public long getSize() {
+            return value.length;
+        }
+        @Override
+        public boolean isMaterialized() {
+            return true;
+        }
+        @Override
+        public SeqCursor openCursor() {
+            return new SeqCursor() {
+                @Override
+                public boolean fill(long from, int[] buf, int offset, int count) {
+                    System.arraycopy(value, (int) from, buf, offset, count);
+                    return true;
+                }
+            };
+        }
+    }
+
+    private static final class FloatValue extends Value {
+        private final double value;
+        public FloatValue(double value) {
+            this.value = value;
+        }
+        @Override
+        public double getFloat() {
+            return value;
+        }
+        @Override
+        public Type getType() {
+            return Type.FLOAT;
+        }        
+    }
+
+    static final class FloatArrayValue extends Value {
+        private final double[] value;
+        public FloatArrayValue(double[] value) {
+            this.value = value;
+        }
+        @Override
+        public double[] getFloatArray() {
+            return value;
+        }
+        @Override
+        public Type getType() {
+            return Type.SEQ_FLOAT;
+        }        
+        @Override
+        public long getSize() {
+            return value.length;
+        }
+        @Override
+        public boolean isMaterialized() {
+            return true;
+        }
+        @Override
+        public SeqCursor openCursor() {
+            return new SeqCursor() {
+                @Override
+                public boolean fill(long from, double[] buf, int offset, int count) {
+                    System.arraycopy(value, (int) from, buf, offset, count);
+                    return true;
+                }
+            };
+        }
+    }
+}
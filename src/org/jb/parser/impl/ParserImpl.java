@@ -99,8 +99,8 @@ public class ParserImpl {
         if (symtab.contains(name)) {
             error(nameTok, "duplicate variable declaration " + name);
         }
-        symtab.put(name, type);
-        return new DeclStatement(firstTok.getLine(), firstTok.getColumn(), name, expr);
+        int slot = symtab.declare(name, type);
+        return new DeclStatement(firstTok.getLine(), firstTok.getColumn(), name, expr, symtab.depth, slot);
     }
 
     private DeclStatement lambdaVarDecl(Type type) throws SynaxError {        
@@ -111,8 +111,8 @@ public class ParserImpl {
         if (symtab.contains(name)) {
             error(tok, "duplicate variable declaration " + name);
         }
-        symtab.put(name, type);
-        return new DeclStatement(tok.getLine(), tok.getColumn(), tok.getText(), null);
+        int slot = symtab.declare(name, type);
+        return new DeclStatement(tok.getLine(), tok.getColumn(), tok.getText(), null, symtab.depth, slot);
     }
 
     private PrintStatement printStatement() throws SynaxError {
@@ -317,12 +317,12 @@ public class ParserImpl {
         assert tok.getKind() == Token.Kind.ID;
         consume();
         CharSequence name = tok.getText();
-        Type type = symtab.getType(name);
-        if (type == null) {
+        Symtab.Entry entry = symtab.get(name);
+        if (entry == null) {
             error(tok, "undeclared variable " + name);
-            type = Type.ERRONEOUS;
+            return new IdExpr(name, tok.getLine(), tok.getColumn(), Type.ERRONEOUS);
         }
-        return new IdExpr(name, tok.getLine(), tok.getColumn(), type);
+        return new IdExpr(name, tok.getLine(), tok.getColumn(), entry.type, entry.frame, entry.slot);
     }
 
     private ParenExpr paren() throws SynaxError {
@@ -520,37 +520,67 @@ public class ParserImpl {
         symtab = symtab.previous;
     }
 
+    /** 
+     * Resolves names: besides the type, each variable gets a frame and a slot (see DeclStatement),
+     * so that the evaluator does not need to look variables up by name
+     */
     private static class Symtab {
 
         private boolean transitive;
         private Symtab previous;
-        private Map<CharSequence, Type> data = new TreeMap<>();
+        /** 0 for globals, lambda nesting depth for lambdas */
+        private final int depth;
+        private Map<CharSequence, Entry> data = new TreeMap<>();
+        private int slotCount = 0;
+
+        private static final class Entry {
+            private Type type;
+            private final int frame;
+            private final int slot;
+            public Entry(Type type, int frame, int slot) {
+                this.type = type;
+                this.frame = frame;
+                this.slot = slot;
+            }
+        }
 
         public Symtab(Symtab previous, boolean transitive) {
             this.transitive = transitive;
             this.previous = previous;
+            this.depth = (previous == null) ? 0 : previous.depth + 1;
         }        
 
         public boolean contains(CharSequence name) {
-            if (data.containsKey(name)) {
-                return true;
-            }
-            if (transitive && previous != null) {
-                return previous.contains(name);
-            }
-            return false;
+            return get(name) != null;
         }
         
-        public Type getType(CharSequence name) {
-            Type type = data.get(name);
-            if (type == null && transitive && previous != null) {
-                type = previous.getType(name);
+        public Entry get(CharSequence name) {
+            Entry entry = data.get(name);
+            if (entry == null && transitive && previous != null) {
+                entry = previous.get(name);
             }
-            return type;
+            return entry;
+        }
+
+        /** 
+         * Declares a variable; a duplicate declaration gets a new slot,
+         * so that references that precede it (including its own initializer) still refer to the previous one
+         * @return slot of the variable
+         */
+        public int declare(CharSequence name, Type type) {
+            Entry entry = new Entry(type, depth, slotCount++);
+            data.put(name, entry);
+            return entry.slot;
         }
 
+        /** Changes type of a variable (its slot is kept) or declares it if it is not declared yet */
         public void put(CharSequence name, Type type) {
-            data.put(name, type);
+            Entry entry = data.get(name);
+            if (entry == null) {
+                declare(name, type);
+            } else {
+                entry.type = type;
+            }
         }
     }
 
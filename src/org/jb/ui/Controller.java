@@ -57,6 +57,8 @@ import org.jb.parser.api.Parser;
     // if autorun is OFF, it is used for explicit actions
     private final ThreadPoolExecutor longTaskExecutor;
     private volatile Future<?> currentLongTask;
+    /** Evaluator of the current long task, if any: interrupting the task does not stop its parallel slices */
+    private volatile Evaluator currentEvaluator;
 
     // If autorun is ON, it is never used;
     // if it is OFF, used for automatic symtax check
@@ -191,8 +193,7 @@ import org.jb.parser.api.Parser;
             ASTNode ast = parser.parse(ts, outputWindow.getDiagnosticListener());
             Evaluator evaluator = new Evaluator(
                     outputWindow.getOutputAsAppendable(), allowParallelisation, outputWindow.getDiagnosticListener());
-            evaluator.execute(ast);
-            evaluator.dispose();
+            execute(evaluator, ast);
         } catch (UnsupportedEncodingException | TokenStreamException ex) {
             outputWindow.printErr(ex.getLocalizedMessage());
         } catch (OutOfMemoryError ex) {
@@ -227,8 +228,7 @@ import org.jb.parser.api.Parser;
                 try {
                     Evaluator evaluator = new Evaluator(
                             outputWindow.getOutputAsAppendable(), allowParallelisation, listeners);
-                    evaluator.execute(ast);
-                    evaluator.dispose();
+                    execute(evaluator, ast);
                 } catch (OutOfMemoryError ex) {
                     outputWindow.printErr("Insufficient memory to complete the operation");
                 } catch (Throwable ex) {
@@ -253,6 +253,20 @@ import org.jb.parser.api.Parser;
         runInEDT(() -> underlineErrors(diagnostics, updateId));
     }
 
+    /** Executes the AST in the current long task, so that cancelLongTask can stop the evaluator */
+    private void execute(Evaluator evaluator, ASTNode ast) {
+        currentEvaluator = evaluator;
+        try {
+            if (Thread.currentThread().isInterrupted()) {
+                return; // cancelled before the evaluator was published
+            }
+            evaluator.execute(ast);
+        } finally {
+            currentEvaluator = null;
+            evaluator.dispose();
+        }
+    }
+
     private void underlineErrors(List<Diagnostic> diagnostics, final int updateId) {
         assert SwingUtilities.isEventDispatchThread();
         if (updateId != this.updateId) {
@@ -297,6 +311,10 @@ import org.jb.parser.api.Parser;
         if (task != null) {
             task.cancel(true);
         }
+        Evaluator evaluator = currentEvaluator;
+        if (evaluator != null) {
+            evaluator.cancel();
+        }
     }
 
     private void submitLightweightTask(Runnable r) {
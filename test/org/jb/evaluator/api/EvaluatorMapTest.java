@@ -1,6 +1,9 @@
 package org.jb.evaluator.api;
 
+import java.io.File;
+import java.nio.file.Files;
 import org.junit.Test;
+import static org.junit.Assert.assertTrue;
 
 /**
  *
@@ -60,6 +63,28 @@ public class EvaluatorMapTest extends EvaluatorTestBase {
         doTestEvaluator(source, "0.2, 0.2, 0.2");
     }
 
+    @Test
+    public void testMapChain() throws Exception {
+        String source =
+            "var x = map(map({1, 4}, i -> i*2), j -> j+1)\n" +
+            "out reduce(x, 0, a b -> a+b)\n";
+        //setDebug(true);
+        doTestEvaluator(source, "24");
+        assertEmptyDiagnostics();
+    }
+
+    @Test
+    public void testMapUsedTwice() throws Exception {
+        String source =
+            "var y = map({1, 3}, i -> i*i)\n" +
+            "var s = reduce(y, 0, a b -> a+b)\n" +
+            "out y\n" +
+            "out s\n";
+        //setDebug(true);
+        doTestEvaluator(source, "1, 4, 9", "14");
+        assertEmptyDiagnostics();
+    }
+
     @Test
     public void testMapOuterSymtabNotVisible() throws Exception {
         String source = 
@@ -94,5 +119,156 @@ public class EvaluatorMapTest extends EvaluatorTestBase {
         doTestEvaluator(source, "1.0, -0.3333*");
         assertEmptyDiagnostics();
     }        
-}
 
+    @Test
+    public void testMapAllOperations() throws Exception {
+        String source =
+            "out map({1, 5}, i -> (i*2 + 1)^2 / 3 - i)\n" +
+            "out map({1, 3}, i -> (-1)^i * 0.5 + i / 2.0)\n" +
+            "out map(map({1, 3}, i -> i / 4.0), f -> f^2 * 16 - 1)\n" +
+            "out reduce({1, 4}, 1, x y -> x * y^2)\n" +
+            "out reduce({1, 4}, 0.5, x y -> x * 2 - y)\n";
+        //setDebug(true);
+        doTestEvaluator(source, "2, 6, 13, 23, 35", "0.0, 1.5, 1.0", "0.0, 3.0, 8.0", "576", "-18.0");
+        assertEmptyDiagnostics();
+    }
+
+    @Test
+    public void testMapPowers() throws Exception {
+        String source =
+            "out map({0, 4}, i -> i^3 - i^2 + (-1)^i)\n" +
+            "out map({1, 3}, i -> i * (2 + 3)^2)\n" +
+            "out map({1, 2}, i -> (i / 2.0)^2)\n" +
+            "out reduce({1, 3}, 0.5, x y -> x^2)\n";
+        //setDebug(true);
+        doTestEvaluator(source, "1, -1, 5, 17, 49", "25, 50, 75", "0.25, 1.0", "0.00390625");
+        assertEmptyDiagnostics();
+    }
+
+    @Test
+    public void testMapSignPowerNegative() throws Exception {
+        String source =
+            "out map({-1, 1}, i -> (-1)^i)\n";
+        //setDebug(true);
+        doTestEvaluator(source);
+        assertDiagnosticEquals(0, 1, 23, "only nonnegative power is supported");
+    }
+
+    @Test
+    public void testMapInvariantReduce() throws Exception {
+        String source =
+            "out map({1, 3}, i -> i * reduce({1, 1000}, 0, x y -> x + y))\n" +
+            "out map({1, 3}, i -> reduce({1, 1000}, 0, x y -> x + y) - 1)\n";
+        //setDebug(true);
+        doTestEvaluator(source, "500500, 1001000, 1501500", "500499, 500499, 500499");
+        assertEmptyDiagnostics();
+    }
+
+    @Test
+    public void testMapCommonSubexpressions() throws Exception {
+        String source =
+            "out map({0, 3}, i -> (2.0*i+1) * (2.0*i+1) / (2.0*i+1 + 3))\n" +
+            "out reduce({1, 4}, 0, x y -> x + (y*y + 1) * (y*y + 1) - (y*y + 1))\n" +
+            "out map({0, 2}, i -> 6 / (i - 1) + 6 / (i - 1))\n";
+        //setDebug(true);
+        doTestEvaluator(source, "0.25, 1.5, 3.125, 4.9", "384");
+        assertDiagnosticEquals(0, 3, 22, "zero division");
+    }
+
+    @Test
+    public void testMapSegmentedStorage() throws Exception {
+        // large enough to be stored in several segments, used more than once, so it is stored
+        String source =
+            "var a = map({1, 100000}, i -> i - i / 7 * 7)\n" +
+            "out reduce(a, 0, x y -> x + y)\n" +
+            "out reduce(a, 0, x y -> y)\n" +
+            "var f = map(a, x -> x * 0.5)\n" +
+            "out reduce(f, 0, x y -> x + y)\n" +
+            "out reduce(f, 0, x y -> y)\n";
+        String offHeap = System.getProperty("jbs.storage.offheap");
+        String packed = System.getProperty("jbs.storage.packed");
+        try {
+            System.setProperty("jbs.storage.packed", "false");
+            for (String value : new String[] { "false", "true" }) {
+                System.setProperty("jbs.storage.offheap", value);
+                doTestEvaluator(source, "300000", "5", "150000.0", "2.5");
+                assertEmptyDiagnostics();
+            }
+        } finally {
+            restoreProperty("jbs.storage.offheap", offHeap);
+            restoreProperty("jbs.storage.packed", packed);
+        }
+    }
+
+    @Test
+    public void testMapPackedStorage() throws Exception {
+        // each variable is used more than once, so it is stored;
+        // blocks are linear, byte, short and int wide, exact floats and not
+        String source =
+            "var a = map({0, 100000}, i -> i * 2)\n" +
+            "out reduce(a, 0, x y -> x + y)\n" +
+            "out reduce(a, 0, x y -> y)\n" +
+            "var b = map({0, 100000}, i -> 3 * i - i / 7 * 7)\n" +
+            "out reduce(b, 0, x y -> x + y)\n" +
+            "out reduce(b, 0, x y -> y)\n" +
+            "var c = map({0, 100000}, i -> i / 1000 * 1000 - i / 3 * 700)\n" +
+            "out reduce(c, 0, x y -> x + y)\n" +
+            "out reduce(c, 0, x y -> y)\n" +
+            "var d = map({0, 100000}, i -> i * i * i)\n" +
+            "out reduce(d, 0, x y -> y)\n" +
+            "out reduce(d, 0, x y -> x + y)\n" +
+            "var f = map(a, x -> x * 0.25)\n" +
+            "out reduce(f, 0, x y -> x + y)\n" +
+            "out reduce(f, 0, x y -> y)\n" +
+            "var g = map(a, x -> 1 / (x + 1.0))\n" +
+            "out reduce(g, 0, x y -> y)\n" +
+            "out reduce(g, 0, x y -> x + y)\n";
+        String packed = System.getProperty("jbs.storage.packed");
+        try {
+            System.setProperty("jbs.storage.packed", "false");
+            String[] expected = doTestEvaluator(source, (String[]) null);
+            assertEmptyDiagnostics();
+            assertTrue(expected.length == 12);
+            System.setProperty("jbs.storage.packed", "true");
+            doTestEvaluator(source, expected);
+            assertEmptyDiagnostics();
+        } finally {
+            restoreProperty("jbs.storage.packed", packed);
+        }
+    }
+
+    @Test
+    public void testMapSpilledStorage() throws Exception {
+        String source =
+            "var a = map({1, 100000}, i -> i - i / 7 * 7)\n" +
+            "out reduce(a, 0, x y -> x + y)\n" +
+            "out reduce(a, 0, x y -> y)\n" +
+            "var f = map(a, x -> x * 0.5)\n" +
+            "out reduce(f, 0, x y -> x + y)\n" +
+            "out reduce(f, 0, x y -> y)\n";
+        File dir = Files.createTempDirectory("jbs-spill-test").toFile();
+        String spillBytes = System.getProperty("jbs.spill.bytes");
+        String spillDir = System.getProperty("jbs.spill.dir");
+        try {
+            System.setProperty("jbs.spill.bytes", "1000");
+            System.setProperty("jbs.spill.dir", dir.getAbsolutePath());
+            doTestEvaluator(source, "300000", "5", "150000.0", "2.5");
+            assertEmptyDiagnostics();
+            assertTrue("spill files should be deleted by dispose", dir.list().length == 0);
+            // a spill file is as large as the sequence, not as a mapped region
+            Evaluator evaluator = new Evaluator(new StringBuilder(), false, getTestDiagnosticListener());
+            evaluator.execute(getAst(source));
+            File[] files = dir.listFiles();
+            assertTrue("sequences should be spilled", files.length == 2);
+            for (File file : files) {
+                assertTrue("spill file is too large: " + file.length(), file.length() <= 100000 * 8);
+            }
+            evaluator.dispose();
+            assertEmptyDiagnostics();
+        } finally {
+            restoreProperty("jbs.spill.bytes", spillBytes);
+            restoreProperty("jbs.spill.dir", spillDir);
+            dir.delete();
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package org.jb.evaluator.api;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.jb.ast.api.ASTNode;
+import org.junit.Assume;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author vkvashin
+ */
+public class EvaluatorParallelTest extends EvaluatorTestBase {
+
+    static {
+        System.setProperty("jbs.par.count", "1000");
+        System.setProperty("jbs.threads", "4");
+    }
+
+    @Test
+    public void testParallelMap() throws Exception {
+        String source =
+            "var x = map({1, 100000}, i -> i*2)\n" +
+            "out reduce(x, 0, a b -> a+b)\n";
+        //setDebug(true);
+        doTestEvaluator(source, "1410165408"); // 100000*100001 overflows as in Java
+        assertEmptyDiagnostics();
+    }
+
+    @Test
+    public void testNestedParallelism() throws Exception {
+        String source =
+            "var x = map({1, 5000}, i -> reduce({1, 5000}, 0, a b -> a+b) / 5000)\n" +
+            "out reduce(x, 0, a b -> a+b)\n" +
+            "out reduce(map({1, 5000}, i -> reduce({1, i}, 0, a b -> a+b)), 0, a b -> b)\n";
+        //setDebug(true);
+        doTestEvaluator(source, "12500000", "12502500");
+        assertEmptyDiagnostics();
+    }
+
+    @Test
+    public void testParallelReduceMatchesSerial() throws Exception {
+        String source =
+            "out reduce({1, 20000}, 0, x y -> x - y)\n" +
+            "out reduce({1, 20000}, 10, x y -> x + y)\n" +
+            "out reduce({1, 20000}, 1, x y -> x*2 + y)\n" +
+            "out reduce({1, 20000}, 0, x y -> y)\n" +
+            "out reduce({1, 20000}, 1, x y -> x*y)\n" +
+            "out reduce({1, 20000}, 1, x y -> 3*(x - y*y) + 1)\n" +
+            "out reduce({1, 20000}, 0, x y -> x*x + y)\n" +
+            "out reduce({1, 20000}, 0, x y -> x / 2 + y)\n" +
+            "out reduce({1, 20000}, 0.5, x y -> x + y*0.5)\n" +
+            "out reduce({1, 20000}, 1000, x y -> x - y*0.25)\n";
+        //setDebug(true);
+        String[] expected = doTestEvaluator(source, false, (String[]) null);
+        assertEmptyDiagnostics();
+        doTestEvaluator(source, true, expected);
+        assertEmptyDiagnostics();
+        // slices should not turn an overflow into NaN: Infinity times a multiplier that underflows to 0
+        String overflow = "out reduce(map({1, 10000}, i -> 10.0^308 * i), 0.0, x y -> x*0.5 + y)\n";
+        doTestEvaluator(overflow, false, "Infinity");
+        doTestEvaluator(overflow, true, "Infinity");
+        assertEmptyDiagnostics();
+    }
+
+    @Test
+    public void testFloatReduceDoesNotDependOnThreads() throws Exception {
+        String source =
+            "out reduce(map({1, 300000}, i -> 1/(i*1.0)), 0, x y -> x + y)\n" +
+            "out reduce(map({1, 300000}, i -> (-1)^i / (2.0*i + 1)), 1, x y -> x + 4*y)\n" +
+            "out reduce({1, 300000}, 0.0, x y -> x*0.999 + y/3.0)\n";
+        //setDebug(true);
+        String[] expected = doTestEvaluator(source, false, (String[]) null);
+        assertEmptyDiagnostics();
+        String threads = System.getProperty("jbs.threads");
+        try {
+            for (int i = 2; i <= 5; i++) {
+                System.setProperty("jbs.threads", Integer.toString(i));
+                doTestEvaluator(source, true, expected);
+                assertEmptyDiagnostics();
+            }
+        } finally {
+            System.setProperty("jbs.threads", threads);
+        }
+    }
+
+    @Test
+    public void testCompensatedSum() throws Exception {
+        // compensation is implemented by prepared expressions only
+        Assume.assumeFalse(Boolean.getBoolean("jbs.suppress.prepare.expressions"));
+        String source =
+            "out reduce(map({1, 100000}, i -> 0.1), 0, x y -> x + y)\n";
+        //setDebug(true);
+        String compensated = System.getProperty("jbs.reduce.compensated");
+        try {
+            System.setProperty("jbs.reduce.compensated", "true");
+            doTestEvaluator(source, "10000.0");
+            assertEmptyDiagnostics();
+        } finally {
+            restoreProperty("jbs.reduce.compensated", compensated);
+        }
+    }
+
+    @Test
+    public void testConcurrentStatements() throws Exception {
+        String source =
+            "var a = map({1, 3000}, i -> reduce({1, i}, 0, x y -> x + y))\n" +
+            "var b = reduce(a, 0, x y -> x + y)\n" +
+            "var c = reduce(a, 0, x y -> y)\n" +
+            "print \"b = \"\n" +
+            "out b\n" +
+            "out 1 / 0\n" +
+            "print \"c = \"\n" +
+            "out c\n" +
+            "out b - c\n" +
+            "out map({1, 3}, i -> i * i)\n";
+        //setDebug(true);
+        String[] expected = doTestEvaluator(source, false, (String[]) null);
+        doTestEvaluator(source, true, expected);
+        assertDiagnosticEquals(1, 6, 5, "zero division");
+    }
+
+    @Test
+    public void testVariableErrorsInOrder() throws Exception {
+        // an error in a variable initializer is reported by the first statement that uses it, even if it is calculated earlier
+        String source =
+            "out reduce(map({1, 3000000}, i -> i*i), 0, x y -> x+y) / 0\n" +
+            "var a = reduce({1, 10}, 0, x y -> x / 0)\n" +
+            "out a\n" +
+            "out 1\n";
+        doTestEvaluator(source, false, "", "", "1");
+        doTestEvaluator(source, true, "", "", "1");
+        for (int i = 0; i < 4; i += 2) {
+            assertDiagnosticEquals(i, 1, 5, "zero division");
+            assertDiagnosticEquals(i + 1, 2, 35, "zero division");
+        }
+    }
+
+    @Test
+    public void testConcurrentEvaluators() throws Exception {
+        // evaluators that run at once share the same pool
+        String source =
+            "var a = map({1, 200000}, i -> i / 3 * 2)\n" +
+            "out reduce(a, 0, x y -> x + y)\n" +
+            "out reduce(map(a, x -> x * 0.5), 0, x y -> x + y)\n" +
+            "out reduce({1, 200000}, 0, x y -> x + y / 7)\n";
+        //setDebug(true);
+        String[] expected = doTestEvaluator(source, false, (String[]) null);
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            List<Future<String[]>> results = new ArrayList<>();
+            for (int i = 0; i < 6; i++) {
+                results.add(executor.submit(() -> doTestEvaluator(source, true, expected)));
+            }
+            for (Future<String[]> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEmptyDiagnostics();
+    }
+
+    @Test
+    public void testCostModel() throws Exception {
+        // without jbs.par.count, the cost of elements decides: a few expensive elements are worth splitting
+        String source =
+            "var a = map({1, 300}, i -> reduce({i, i + 20000}, 0, x y -> x + y / 3))\n" +
+            "out reduce(a, 0, x y -> x + y)\n" +
+            "out reduce(map({1, 200000}, i -> i / 3), 0, x y -> x + y)\n" +
+            "out reduce(map({1, 50000}, i -> (i * 0.5) ^ 1.5 / (i + 2.0) ^ 0.5), 0, x y -> x + y)\n";
+        String[] expected = doTestEvaluator(source, false, (String[]) null);
+        assertEmptyDiagnostics();
+        File file = File.createTempFile("jbs-cost", ".properties");
+        file.delete();
+        String count = System.getProperty("jbs.par.count");
+        try {
+            System.clearProperty("jbs.par.count");
+            System.setProperty("jbs.cost.file", file.getAbsolutePath());
+            doTestEvaluator(source, true, expected);
+            assertEmptyDiagnostics();
+            // the calibration is kept for the next runs
+            Properties calibration = new Properties();
+            try (InputStream in = new FileInputStream(file)) {
+                calibration.load(in);
+            }
+            assertNotNull(calibration.getProperty("nanos.per.unit"));
+        } finally {
+            System.setProperty("jbs.par.count", count);
+            System.clearProperty("jbs.cost.file");
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testRemoteWorkers() throws Exception {
+        // slices are calculated by worker JVMs started by the evaluator; results should be the same as serial ones
+        String source =
+            "var s = map({1, 300000}, i -> i * i / 7)\n" +
+            "out reduce(s, 0, a b -> a + b * 3)\n" +
+            "out reduce(map(s, x -> x * 0.5 + 1), 0, a b -> a + b)\n" +
+            "out reduce(map({0, 300000}, i -> (-1)^i / (2.0 * i + 1)), 0, x y -> x + y)\n" +
+            "out reduce(s, 1, a b -> a * 3 + b)\n";
+        String[] expected = doTestEvaluator(source, false, (String[]) null);
+        assertEmptyDiagnostics();
+        try {
+            System.setProperty("jbs.workers", "2");
+            doTestEvaluator(source, true, expected);
+            assertEmptyDiagnostics();
+            // workers are already started; switches of the evaluator are sent with requests
+            String compensated = System.getProperty("jbs.reduce.compensated");
+            try {
+                System.setProperty("jbs.reduce.compensated", "true");
+                String[] compensatedExpected = doTestEvaluator(source, false, (String[]) null);
+                doTestEvaluator(source, true, compensatedExpected);
+                assertEmptyDiagnostics();
+            } finally {
+                restoreProperty("jbs.reduce.compensated", compensated);
+            }
+            // a slice that fails in a worker is calculated locally, and the error is reported as usual
+            doTestEvaluator("out reduce(map({0, 300000}, i -> 1000 / (i - 200000)), 0, a b -> a + b)\nout 1\n", true, "", "1");
+            assertDiagnosticEquals(0, 1, 34, "zero division");
+        } finally {
+            System.clearProperty("jbs.workers");
+        }
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        // cancel stops all the slices of a long parallel operation, not just the thread that runs the script
+        ASTNode ast = getAst("out reduce(map({1, 2000000000}, i -> i * 0.5 + i / 7), 0, x y -> x + y)\n");
+        StringBuilder out = new StringBuilder();
+        Evaluator evaluator = new Evaluator(out, true, getTestDiagnosticListener());
+        Thread thread = new Thread(() -> evaluator.execute(ast));
+        thread.start();
+        Thread.sleep(200);
+        long start = System.currentTimeMillis();
+        evaluator.cancel();
+        thread.join(10000);
+        assertTrue("Evaluation is not cancelled", !thread.isAlive());
+        assertTrue("Cancellation took too long", System.currentTimeMillis() - start < 2000);
+        // a cancelled evaluator does not run anything any more
+        evaluator.execute(getAst("out 1\n"));
+        evaluator.dispose();
+        assertTrue("Cancelled evaluator produced output", out.length() == 0);
+        assertEmptyDiagnostics();
+    }
+
+    @Test
+    public void testTimeBudget() throws Exception {
+        String out = executeWithBudget(
+            "out 1\n" +
+            "out reduce(map({1, 2000000000}, i -> i * 0.5 + i / 7), 0, x y -> x + y)\n" +
+            "out 2\n", true, 200);
+        assertTrue("Unexpected output " + out, out.equals("1\n"));
+        assertDiagnosticEquals(0, -1, -1, "evaluation is stopped: time budget of 200 ms is exceeded");
+    }
+
+    @Test
+    public void testTimeBudgetSerialReduce() throws Exception {
+        // a serial reduce of a range: no map cursor, just the reduce loop
+        String out = executeWithBudget("out reduce({1, 2000000000}, 0, x y -> x * x + y)\n", false, 200);
+        assertTrue("Unexpected output " + out, out.isEmpty());
+        assertDiagnosticEquals(0, -1, -1, "evaluation is stopped: time budget of 200 ms is exceeded");
+    }
+
+    @Test
+    public void testTimeBudgetProduct() throws Exception {
+        // a product of odd factors never comes to zero, so its closed form is as long as the range
+        String out = executeWithBudget("out reduce({1, 2000000000}, 1, x y -> x * (2 * y + 1))\n", false, 200);
+        assertTrue("Unexpected output " + out, out.isEmpty());
+        assertDiagnosticEquals(0, -1, -1, "evaluation is stopped: time budget of 200 ms is exceeded");
+    }
+
+    @Test
+    public void testTimeBudgetRemote() throws Exception {
+        // the coordinator does not wait for slices that are in progress in worker JVMs
+        try {
+            System.setProperty("jbs.workers", "2");
+            // workers are started by the first remote operation
+            doTestEvaluator("out reduce(map({1, 300000}, i -> i / 3), 0, x y -> x + y)\n", true, "2115048112");
+            String out = executeWithBudget("out reduce(map({1, 2000000000}, i -> i * 0.5 + i / 7), 0, x y -> x + y)\n", true, 300);
+            assertTrue("Unexpected output " + out, out.isEmpty());
+            assertDiagnosticEquals(0, -1, -1, "evaluation is stopped: time budget of 300 ms is exceeded");
+        } finally {
+            System.clearProperty("jbs.workers");
+        }
+    }
+
+    @Test
+    public void testTimeBudgetSetDuringRun() throws Exception {
+        // the budget is counted from the start of the run, not from the moment it is set
+        ASTNode ast = getAst("out reduce(map({1, 2000000000}, i -> i * 0.5 + i / 7), 0, x y -> x + y)\n");
+        StringBuilder out = new StringBuilder();
+        Evaluator evaluator = new Evaluator(out, true, getTestDiagnosticListener());
+        evaluator.setTimeBudget(0);
+        Thread thread = new Thread(() -> evaluator.execute(ast));
+        long start = System.currentTimeMillis();
+        thread.start();
+        Thread.sleep(100);
+        evaluator.setTimeBudget(1500);
+        thread.join(700);
+        assertTrue("Evaluation is stopped before the budget is over", thread.isAlive());
+        thread.join(10000);
+        assertTrue("Time budget is not respected", !thread.isAlive() && System.currentTimeMillis() - start < 1500 + 1000);
+        evaluator.dispose();
+        assertTrue("Unexpected output " + out, out.length() == 0);
+        assertDiagnosticEquals(0, -1, -1, "evaluation is stopped: time budget of 1500 ms is exceeded");
+    }
+
+    private String executeWithBudget(String source, boolean allowParallel, long millis) throws Exception {
+        ASTNode ast = getAst(source);
+        StringBuilder out = new StringBuilder();
+        Evaluator evaluator = new Evaluator(out, allowParallel, getTestDiagnosticListener());
+        evaluator.setTimeBudget(millis);
+        long start = System.currentTimeMillis();
+        evaluator.execute(ast);
+        evaluator.dispose();
+        assertTrue("Time budget is not respected", System.currentTimeMillis() - start < millis + 1000);
+        return out.toString();
+    }
+}
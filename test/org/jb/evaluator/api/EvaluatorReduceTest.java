@@ -46,6 +46,19 @@ public class EvaluatorReduceTest extends EvaluatorTestBase {
         assertEmptyDiagnostics();
     }
 
+    @Test
+    public void testReduceFloatSeqIntDefault() throws Exception {
+        String source =
+            "var x = map({1, 3}, i -> i*0.5)\n" +
+            "var y = reduce(x, 0, a b -> a+b)\n" +
+            "var z = reduce(x, 0, a b -> a+1)\n" +
+            "out y\n" +
+            "out z\n";
+        setDebug(true);
+        doTestEvaluator(source, "3.0", "3.0");
+        assertEmptyDiagnostics();
+    }
+
     @Test
     public void testReduceTZ1() throws Exception {
         String source = 
@@ -67,4 +80,53 @@ public class EvaluatorReduceTest extends EvaluatorTestBase {
         setDebug(true);
         doTestEvaluator(source, "3.14*");
     }
+
+    @Test
+    public void testReduceNested() throws Exception {
+        String source =
+            "var s = map({1, 4}, i -> reduce({1, i}, 1, a b -> a * b))\n" +
+            "out s\n" +
+            "out reduce(map({1, 3000}, i -> reduce({i, i + 3}, 0, a b -> a + b*2)), 0, x y -> x + y)\n";
+        //setDebug(true);
+        doTestEvaluator(source, "1, 2, 6, 24", "36048000");
+        assertEmptyDiagnostics();
+    }
+
+    @Test
+    public void testReduceDivZero() throws Exception {
+        String source =
+            "out reduce({0, 3}, 12, a b -> a / b)\n" +
+            "out 1\n";
+        //setDebug(true);
+        doTestEvaluator(source, "", "1");
+        assertDiagnosticEquals(0, 1, 31, "zero division");
+    }
+
+    @Test
+    public void testReduceNegativePower() throws Exception {
+        String source =
+            "out reduce({1, 3}, 0, a b -> a + 2^(1 - b))\n";
+        //setDebug(true);
+        doTestEvaluator(source);
+        assertDiagnosticEquals(0, 1, 34, "only nonnegative power is supported");
+    }
+
+    @Test
+    public void testReduceRangeIdioms() throws Exception {
+        String source =
+            "out reduce({1, 100000}, 0, x y -> x + y)\n" +
+            "out reduce({-5, 100000}, 7, x y -> x - 3 * y + 2)\n" +
+            "out reduce({1, 100000}, 0.5, x y -> x + y)\n" +
+            "out reduce(map({1, 100000}, i -> 2.0 * i + 1), 0, x y -> x + y)\n" +
+            "out reduce(map(map({0, 100000}, i -> i - 7), j -> 3 * j), 1, x y -> x + 2 * y - 1)\n" +
+            "out reduce({1, 100000}, 5.0, x y -> y * 2)\n" +
+            "out reduce({1, 10}, 1, x y -> x * y)\n" +
+            "out reduce({1, 100000}, 1, x y -> x * (2 * y + 1))\n" +
+            "out reduce({1, 200000}, 0.0, x y -> x + y * 1000000000)\n" +
+            "out map({1, 4}, i -> reduce({1, i}, 0, a b -> a + b))\n";
+        //setDebug(true);
+        doTestEvaluator(source, "705082704", "-2115048048", "5.0000500005E9", "1.00002E10", "-68771114",
+                "200000.0", "3628800", "1062932609", "4.90381312E9", "1, 3, 6, 10");
+        assertEmptyDiagnostics();
+    }
 }
@@ -1,6 +1,7 @@
 package org.jb.evaluator.api;
 
 import org.jb.ast.api.ASTNode;
+import org.junit.Assume;
 import org.junit.Test;
 
 /**
@@ -151,6 +152,15 @@ public class EvaluatorSimpleTest extends EvaluatorTestBase {
         doTestEvaluator(source, "1024");
     }
 
+    @Test
+    public void testPowIntOverflow() throws Exception {
+        String source =
+            "var x = 3 ^ 21\n" +
+            "out x\n";
+        //setDebug(true);
+        doTestEvaluator(source, "1870418611"); // wraps around, the same as 3 ^ 20 * 3
+    }
+
     @Test    
     public void testPowFloat() throws Exception {
         String source = 
@@ -169,6 +179,27 @@ public class EvaluatorSimpleTest extends EvaluatorTestBase {
         doTestEvaluator(source, "8, 9, 10, 11");
     }
 
+    @Test
+    public void testSeqEmpty() throws Exception {
+        String source =
+            "var x = {8,7}\n" +
+            "out reduce(x, 5, a b -> a+b)\n";
+        //setDebug(true);
+        doTestEvaluator(source, "5");
+        assertEmptyDiagnostics();
+    }
+
+    @Test
+    public void testSeqHuge() throws Exception {
+        String source =
+            "var x = {-2000000000, 2000000000}\n" +
+            "var y = {1999999998, 2000000000}\n" +
+            "out y\n";
+        //setDebug(true);
+        doTestEvaluator(source, "1999999998, 1999999999, 2000000000");
+        assertEmptyDiagnostics();
+    }
+
     @Test    
     public void testExpr1() throws Exception {
         String source = 
@@ -227,4 +258,78 @@ public class EvaluatorSimpleTest extends EvaluatorTestBase {
         doTestAST(source, null);
         assertNonEmptyDiagnostics();
     }
+
+    @Test
+    public void testVariablesUsedByLaterStages() throws Exception {
+        // values are released after the last use; make sure they are not released too early
+        String source
+                = "var a = map({1, 5}, i -> i * i)\n"
+                + "var b = map(a, x -> x + 1)\n"
+                + "out b\n"
+                + "var c = map(b, x -> x * 2)\n"
+                + "out c\n"
+                + "out reduce(c, 0, x y -> x + y)\n"
+                + "out reduce(a, 0, x y -> x + y)\n";
+        //setDebug(true);
+        doTestEvaluator(source, "2, 5, 10, 17, 26", "4, 10, 20, 34, 52", "120", "55");
+        assertEmptyDiagnostics();
+    }
+
+    @Test
+    public void testValueCacheEviction() throws Exception {
+        // with a tiny cache, materialized values are evicted and recalculated
+        String source
+                = "var a = map({1, 5}, i -> i * i)\n"
+                + "var b = map(a, x -> x * 0.5)\n"
+                + "out b\n"
+                + "out a\n"
+                + "out reduce(b, 0, x y -> x + y)\n"
+                + "out reduce(a, 0, x y -> x + y)\n";
+        String budget = System.getProperty("jbs.cache.bytes");
+        try {
+            System.setProperty("jbs.cache.bytes", "1");
+            doTestEvaluator(source, "0.5, 2.0, 4.5, 8.0, 12.5", "1, 4, 9, 16, 25", "27.5", "55");
+            assertEmptyDiagnostics();
+        } finally {
+            if (budget == null) {
+                System.clearProperty("jbs.cache.bytes");
+            } else {
+                System.setProperty("jbs.cache.bytes", budget);
+            }
+        }
+    }
+
+    @Test
+    public void testSequenceTooLargeForArray() throws Exception {
+        // the walker does not know closed forms, it would take too long
+        Assume.assumeFalse(Boolean.getBoolean("jbs.suppress.prepare.expressions"));
+        // used twice, but can not be stored in an array, so it stays lazy
+        String source
+                = "var a = map({-2147483647, 2147483647}, i -> 2 * i)\n"
+                + "out reduce(a, 0, x y -> x + y)\n"
+                + "out reduce(a, 0, x y -> y)\n";
+        doTestEvaluator(source, "0", "-2");
+        assertEmptyDiagnostics();
+    }
+
+    @Test
+    public void testSequenceTooLargeFailPolicy() throws Exception {
+        String source
+                = "var a = 1\n"
+                + "var b = map({-2147483647, 2147483647}, i -> 2 * i)\n"
+                + "out reduce(b, 0, x y -> x + y)\n"
+                + "out reduce(b, 0, x y -> y)\n";
+        String policy = System.getProperty("jbs.memory.policy");
+        try {
+            System.setProperty("jbs.memory.policy", "fail");
+            doTestEvaluator(source, (String[]) null);
+            assertDiagnosticEquals(0, 2, 9, "sequence of 4294967295 elements (16383 MB) does not fit into memory");
+        } finally {
+            if (policy == null) {
+                System.clearProperty("jbs.memory.policy");
+            } else {
+                System.setProperty("jbs.memory.policy", policy);
+            }
+        }
+    }
 }
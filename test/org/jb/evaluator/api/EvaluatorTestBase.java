@@ -30,4 +30,13 @@ public class EvaluatorTestBase extends ParserTestBase {
         }
         return actual;
     }
+
+    /** Restores a system property saved before a test changed it; null means it was not set */
+    protected static void restoreProperty(String key, String value) {
+        if (value == null) {
+            System.clearProperty(key);
+        } else {
+            System.setProperty(key, value);
+        }
+    }
 }
@@ -11,8 +11,12 @@ import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.List;
 import org.jb.ast.api.ASTNode;
+import org.jb.ast.api.BinaryOpExpr;
 import org.jb.ast.api.DeclStatement;
 import org.jb.ast.api.Expr;
+import org.jb.ast.api.IdExpr;
+import org.jb.ast.api.MapExpr;
+import org.jb.ast.api.ReduceExpr;
 import org.jb.ast.api.Type;
 import org.jb.ast.diagnostics.Diagnostic;
 import org.jb.lexer.api.Token;
@@ -132,4 +136,48 @@ public class ParserTypeTest extends ParserTestBase {
         getAst(source);        
         assertEmptyDiagnostics();
     }
+
+    @Test
+    public void testSlots() throws Exception {
+        String source
+                = "var n = 500\n"
+                + "var s = map({0, n}, i -> i*0.1)\n"
+                + "var r = reduce(s, 0, x y -> y)\n";
+        List<ASTNode> ast = getAstAsList(source);
+        assertEmptyDiagnostics();
+        DeclStatement n = (DeclStatement) ast.get(0);
+        DeclStatement s = (DeclStatement) ast.get(1);
+        DeclStatement r = (DeclStatement) ast.get(2);
+        assertSlotEquals(0, 0, n.getFrame(), n.getSlot());
+        assertSlotEquals(0, 1, s.getFrame(), s.getSlot());
+        assertSlotEquals(0, 2, r.getFrame(), r.getSlot());
+        MapExpr map = (MapExpr) s.getInitializer();
+        assertSlotEquals(1, 0, map.getVar().getFrame(), map.getVar().getSlot());
+        ReduceExpr reduce = (ReduceExpr) r.getInitializer();
+        assertSlotEquals(1, 0, reduce.getPrev().getFrame(), reduce.getPrev().getSlot());
+        assertSlotEquals(1, 1, reduce.getCurr().getFrame(), reduce.getCurr().getSlot());
+        IdExpr seq = (IdExpr) reduce.getSequence();
+        assertSlotEquals(0, 1, seq.getFrame(), seq.getSlot());
+        IdExpr y = (IdExpr) reduce.getTransformation();
+        assertSlotEquals(1, 1, y.getFrame(), y.getSlot());
+    }
+
+    @Test
+    public void testDuplicateDeclarationSlot() throws Exception {
+        String source
+                = "var x = 1\n"
+                + "var x = x + 1\n";
+        List<ASTNode> ast = getAstAsList(source);
+        assertDiagnosticEquals(0, 2, 5, "duplicate variable declaration x");
+        DeclStatement decl = (DeclStatement) ast.get(1);
+        assertSlotEquals(0, 1, decl.getFrame(), decl.getSlot());
+        // the initializer refers to the previous declaration
+        IdExpr id = (IdExpr) ((BinaryOpExpr) decl.getInitializer()).getLeft();
+        assertSlotEquals(0, 0, id.getFrame(), id.getSlot());
+    }
+
+    private void assertSlotEquals(int expectedFrame, int expectedSlot, int frame, int slot) {
+        assertTrue("expected frame " + expectedFrame + " slot " + expectedSlot + " but got frame " + frame + " slot " + slot,
+                frame == expectedFrame && slot == expectedSlot);
+    }
 }